@@ -6,9 +6,11 @@ grammar Stratagem;
 // Reserved words
 FUNCTION : 'fn' ;
 IF       : 'if' ;
+WHILE    : 'while' ;
 ELSE     : 'else' ;
 LET      : 'let' ;
 REF      : 'ref' ;
+REC      : 'rec' ;
 
 // Literals
 LIT_UNIT   : 'unit' ;
@@ -25,6 +27,7 @@ TYPE_STRING    : 'String' ;
 TYPE_REF       : 'Ref' ;
 TYPE_FUN       : '->' ;
 TYPE_ANY       : '?' ;
+TYPE_VAR       : '\'' [a-z] [a-zA-Z0-9_]* ;  // Matches: 'a 'b 'elem
 
 // Binary operators
 MUL       : '*' ;
@@ -44,6 +47,7 @@ PRINT : 'print' ;
 
 // Misc syntax & keywords
 SEPARATOR : ';' ;
+COMMA : ',' ;
 COLON : ':' ;
 LPAREN : '(' ;
 RPAREN : ')' ;
@@ -85,22 +89,27 @@ expr: LPAREN expr RPAREN
     | LIT_UNIT                                                                    # unit
     | ID                                                                          # id
     | IF LPAREN expr RPAREN LBRACE seq RBRACE ELSE LBRACE seq RBRACE              # if
+    | WHILE LPAREN expr RPAREN LBRACE seq RBRACE                                  # while
     | LET ID (COLON type)? BIND expr IN expr                                      # let
+    | LET REC ID (COLON type)? BIND expr IN expr                                  # letRec
     | expr op=( ADD | SUB | MUL | DIV | MOD | GT | GE | LT | LE | EQ | NE ) expr  # binOp
     | PRINT args                                                                  # print
     ;
 
-params: LPAREN ID (COLON type)? RPAREN
+params: LPAREN (param (COMMA param)*)? RPAREN
       ;
 
-args: LPAREN expr RPAREN
+param: ID (COLON type)?
+     ;
+
+args: LPAREN (expr (COMMA expr)*)? RPAREN
     ;
 
-type_prim : TYPE_INT | TYPE_BOOL | TYPE_STRING | TYPE_UNIT | TYPE_ANY ;
+type_prim : TYPE_INT | TYPE_BOOL | TYPE_STRING | TYPE_UNIT | TYPE_ANY | TYPE_VAR ;
 
 type_ref  : TYPE_REF type ;
 
-//          (domain                            ) TYPE_FUN codomain ;
-type_fun  : (type_prim | LPAREN type_fun RPAREN) TYPE_FUN type ;
+//          (domain                                        ) TYPE_FUN codomain ;
+type_fun  : (type_prim | LPAREN (type (COMMA type)*)? RPAREN) TYPE_FUN type ;
 
 type      : type_prim | type_ref | type_fun ;
@@ -0,0 +1,51 @@
+package edu.sjsu.stratagem;
+
+/**
+ * Replaces if-expressions whose condition is a literal with the branch taken,
+ * and while loops whose condition is false with unit.
+ *
+ * The branch taken already has any cast to the type of the whole if-expression,
+ * so it can stand in for the if-expression as it is.
+ */
+class BranchFolder implements OptimizationPass {
+    private int foldedCount;
+
+    public String getName() {
+        return "branches";
+    }
+
+    public Expression optimize(Expression e) {
+        e.mapSubexpressions(this::optimize);
+
+        if (e instanceof IfExpr) {
+            IfExpr ifExpr = (IfExpr) e;
+            Expression cond = ifExpr.getCondition();
+            if (cond instanceof ValueExpr && ((ValueExpr) cond).getValue() instanceof BoolVal) {
+                foldedCount++;
+                return ((BoolVal) ((ValueExpr) cond).getValue()).toBoolean() ? ifExpr.getThen() : ifExpr.getElse();
+            }
+        }
+
+        if (e instanceof WhileExpr) {
+            Expression cond = ((WhileExpr) e).getCondition();
+            if (cond instanceof ValueExpr && ((ValueExpr) cond).getValue() instanceof BoolVal
+                    && !((BoolVal) ((ValueExpr) cond).getValue()).toBoolean()) {
+                foldedCount++;
+                return ValueExpr.unitSingleton;
+            }
+        }
+
+        return e;
+    }
+
+    public String getReport() {
+        return "Branches folded: " + foldedCount;
+    }
+
+    /**
+     * The number of if-expressions and loops folded so far.
+     */
+    int getFoldedCount() {
+        return foldedCount;
+    }
+}
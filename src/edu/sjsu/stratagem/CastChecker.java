@@ -0,0 +1,178 @@
+package edu.sjsu.stratagem;
+
+import edu.sjsu.stratagem.exception.StratagemCastException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The runtime check for casts to one type, worked out from the type ahead of time.
+ *
+ * Every cast to the same type shares one checker, so casting a value does not walk the
+ * target type. A cast to ? always passes, and a cast to a primitive type passes only a
+ * value of exactly that type. Casts to function and reference types check the kind of the
+ * value, then the consistency of its type using the checkers for their component types.
+ */
+abstract class CastChecker {
+    private static final Map<Type, CastChecker> canonical = new HashMap<>();
+
+    protected final Type target;
+
+    CastChecker(Type target) {
+        this.target = target;
+    }
+
+    /**
+     * Returns the checker shared by all casts to the given type.
+     */
+    static CastChecker of(Type target) {
+        CastChecker checker = canonical.get(target);
+        if (checker == null) {
+            if (target == AnyType.singleton) {
+                checker = new AnyCastChecker();
+            } else if (target instanceof ClosureType) {
+                checker = new ClosureCastChecker((ClosureType) target);
+            } else if (target instanceof RefType) {
+                checker = new RefCastChecker((RefType) target);
+            } else {
+                checker = new PrimitiveCastChecker(target);
+            }
+            canonical.put(target, checker);
+        }
+        return checker;
+    }
+
+    Type getTarget() {
+        return target;
+    }
+
+    /**
+     * Casts a value to the target type, or throws a StratagemCastException if it cannot be.
+     */
+    abstract Value check(Value v);
+
+    /**
+     * Whether values of the given type can be cast to the target type, as by consistentWith().
+     */
+    abstract boolean accepts(Type type);
+
+    protected StratagemCastException failure(Value v) {
+        return new StratagemCastException("Cannot cast " + v + " to " + target);
+    }
+}
+
+class AnyCastChecker extends CastChecker {
+    AnyCastChecker() {
+        super(AnyType.singleton);
+    }
+
+    Value check(Value v) {
+        return v;
+    }
+
+    boolean accepts(Type type) {
+        return true;
+    }
+}
+
+/**
+ * Casts to the types that are consistent only with themselves and ?. Values never have
+ * type ? at runtime, so a value passes only if it has exactly the target type.
+ */
+class PrimitiveCastChecker extends CastChecker {
+    PrimitiveCastChecker(Type target) {
+        super(target);
+    }
+
+    Value check(Value v) {
+        if (v.getType() != target) {
+            throw failure(v);
+        }
+        return v;
+    }
+
+    boolean accepts(Type type) {
+        return type == target || type == AnyType.singleton;
+    }
+}
+
+/**
+ * Casts to function types, which give proxies for closures of other types.
+ * The last type found consistent is remembered, since a cast mostly sees closures of one type.
+ */
+class ClosureCastChecker extends CastChecker {
+    private CastChecker[] argCheckers;
+    private CastChecker returnChecker;
+    private Type lastAccepted;
+
+    ClosureCastChecker(ClosureType target) {
+        super(target);
+        argCheckers = new CastChecker[target.getArity()];
+        for (int i = 0; i < argCheckers.length; i++) {
+            argCheckers[i] = of(target.getArgType(i));
+        }
+        returnChecker = of(target.getReturnType());
+    }
+
+    Value check(Value v) {
+        Type type = v.getType();
+        if (type == target) {
+            return v;
+        }
+        if (!(v instanceof ClosureVal) || !accepts(type)) {
+            throw failure(v);
+        }
+        return ((ClosureVal) v).castTo((ClosureType) target);
+    }
+
+    boolean accepts(Type type) {
+        if (type == target || type == lastAccepted || type == AnyType.singleton) {
+            return true;
+        }
+        if (!(type instanceof ClosureType) || ((ClosureType) type).getArity() != argCheckers.length) {
+            return false;
+        }
+
+        ClosureType closureType = (ClosureType) type;
+        if (!returnChecker.accepts(closureType.getReturnType())) {
+            return false;
+        }
+        for (int i = 0; i < argCheckers.length; i++) {
+            if (!argCheckers[i].accepts(closureType.getArgType(i))) {
+                return false;
+            }
+        }
+        lastAccepted = type;
+        return true;
+    }
+}
+
+/**
+ * Casts to reference types, which tighten the cell type of the reference in place.
+ */
+class RefCastChecker extends CastChecker {
+    private CastChecker cellChecker;
+
+    RefCastChecker(RefType target) {
+        super(target);
+        cellChecker = of(target.getCellType());
+    }
+
+    Value check(Value v) {
+        if (v.getType() == target) {
+            return v;
+        }
+        // The reference fails the cast itself if its cell type is inconsistent with the target's.
+        if (!(v instanceof RefVal)) {
+            throw failure(v);
+        }
+        return ((RefVal) v).castTo((RefType) target);
+    }
+
+    boolean accepts(Type type) {
+        if (type == target || type == AnyType.singleton) {
+            return true;
+        }
+        return type instanceof RefType && cellChecker.accepts(((RefType) type).getCellType());
+    }
+}
@@ -0,0 +1,59 @@
+package edu.sjsu.stratagem;
+
+/**
+ * Removes casts that typechecking inserted but that cannot change the outcome of the program.
+ *
+ * A cast is removed if
+ *  - its target is ?, or the static type its body already has,
+ *  - it is applied to a literal whose type is consistent with the target, or
+ *  - it is applied directly to another cast to the same type.
+ */
+class CastEliminator implements OptimizationPass {
+    private int removedCount;
+
+    public String getName() {
+        return "casts";
+    }
+
+    public Expression optimize(Expression e) {
+        e.mapSubexpressions(this::optimize);
+        if (!(e instanceof CastExpr)) {
+            return e;
+        }
+
+        CastExpr cast = (CastExpr) e;
+        Type target = cast.getTarget();
+        Expression body = cast.getBody();
+
+        // Every value is consistent with ?, and every value of a type is consistent with it.
+        if (target == AnyType.singleton || target == cast.getSourceType()) {
+            removedCount++;
+            return body;
+        }
+
+        // Literals can be checked now.
+        if (body instanceof ValueExpr && ((ValueExpr) body).getValue().getType().consistentWith(target)) {
+            removedCount++;
+            return body;
+        }
+
+        // In <target> <target> body, the inner cast has already performed the check.
+        if (body instanceof CastExpr && ((CastExpr) body).getTarget() == target) {
+            removedCount++;
+            return body;
+        }
+
+        return cast;
+    }
+
+    public String getReport() {
+        return "Casts removed: " + removedCount;
+    }
+
+    /**
+     * The number of casts removed so far.
+     */
+    int getRemovedCount() {
+        return removedCount;
+    }
+}
@@ -0,0 +1,132 @@
+package edu.sjsu.stratagem;
+
+import edu.sjsu.stratagem.exception.StratagemCastException;
+
+/**
+ * The casts pending on a function value, composed into one.
+ *
+ * Casting a closure to a function type gives a proxy that casts each argument before the
+ * call and each result after it. Casting the proxy again does not wrap it; instead the new
+ * cast is composed with the pending one by taking the meet of the types involved. So a value
+ * carries at most one coercion, however many typed/untyped boundaries it has crossed.
+ *
+ * A null argument or result type means that the composed casts conflict, so any call
+ * (or any return) fails.
+ */
+final class Coercion {
+    private static final TypePairTable<Coercion> fromFunctionTypes = new TypePairTable<>();
+
+    private ClosureType target;
+    private Type[] argTypes;
+    private Type resultType;
+    private boolean checksArguments;
+    private boolean checksResult;
+
+    /**
+     * @param target the type the proxy appears to have
+     * @param argTypes the types that arguments are cast to
+     * @param resultType the type that results are cast to
+     * @param rawResultType the type that the underlying function returns
+     */
+    Coercion(ClosureType target, Type[] argTypes, Type resultType, Type rawResultType) {
+        this.target = target;
+        this.argTypes = argTypes;
+        this.resultType = resultType;
+
+        // Callers have already cast the arguments to the target's argument types, and the
+        // function's results already have its return type. Casting again to either is a no-op.
+        for (int i = 0; i < argTypes.length; i++) {
+            checksArguments |= argTypes[i] != target.getArgType(i);
+        }
+        this.checksResult = resultType != rawResultType;
+    }
+
+    /**
+     * The coercion for casting a closure that is not a proxy from its own type to the target.
+     * It only depends on the two types, so it is worked out once and shared.
+     */
+    static Coercion of(ClosureType source, ClosureType target) {
+        Coercion coercion = fromFunctionTypes.get(source, target);
+        if (coercion == null) {
+            Type[] argTypes = new Type[source.getArity()];
+            for (int i = 0; i < argTypes.length; i++) {
+                argTypes[i] = meet(target.getArgType(i), source.getArgType(i));
+            }
+            Type resultType = meet(source.getReturnType(), target.getReturnType());
+            coercion = new Coercion(target, argTypes, resultType, source.getReturnType());
+            fromFunctionTypes.put(source, target, coercion);
+        }
+        return coercion;
+    }
+
+    /**
+     * Composes two casts on the same value. Null stands for casts that conflict.
+     */
+    static Type meet(Type t1, Type t2) {
+        return t1 == null || t2 == null ? null : t1.meetWith(t2);
+    }
+
+    ClosureType getTarget() {
+        return target;
+    }
+
+    Type[] getArgTypes() {
+        return argTypes;
+    }
+
+    Type getResultType() {
+        return resultType;
+    }
+
+    boolean checksArguments() {
+        return checksArguments;
+    }
+
+    boolean checksResult() {
+        return checksResult;
+    }
+
+    /**
+     * Composes the result cast of a proxy entered by a tail call with this one, so that
+     * a chain of tail calls through proxies keeps a single pending result cast.
+     */
+    Coercion thenResult(Coercion next) {
+        Type composed = meet(resultType, next.resultType);
+        if (composed == resultType && checksResult) {
+            return this;
+        }
+        Coercion result = new Coercion(target, argTypes, composed, null);
+        result.checksResult = true;
+        return result;
+    }
+
+    /**
+     * Casts the arguments in the parameter slots of a frame set up for a call.
+     */
+    void coerceArguments(ValueEnvironment frame) {
+        if (!checksArguments) {
+            return;
+        }
+        for (int i = 0; i < argTypes.length; i++) {
+            Type argType = argTypes[i];
+            if (argType == target.getArgType(i)) {
+                continue;
+            }
+            Value v = frame.getSlot(i);
+            if (argType == null) {
+                throw new StratagemCastException("Cannot cast " + v + " to " + target.getArgType(i));
+            }
+            frame.setSlot(i, CastExpr.cast(v, argType));
+        }
+    }
+
+    Value coerceResult(Value v) {
+        if (!checksResult) {
+            return v;
+        }
+        if (resultType == null) {
+            throw new StratagemCastException("Cannot cast " + v + " to " + target.getReturnType());
+        }
+        return CastExpr.cast(v, resultType);
+    }
+}
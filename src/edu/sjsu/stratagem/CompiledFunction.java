@@ -0,0 +1,44 @@
+package edu.sjsu.stratagem;
+
+/**
+ * The body of a function, compiled to JVM bytecode by the JitCompiler.
+ *
+ * Generated subclasses are defined by a private class loader, so they can only use
+ * the public parts of the interpreter: this class, JitRuntime, and the public types.
+ */
+public abstract class CompiledFunction {
+    /**
+     * Expressions that the generated code refers to, such as nodes it falls back to evaluating.
+     */
+    protected final Expression[] nodes;
+
+    /**
+     * Constant values that the generated code refers to.
+     */
+    protected final Value[] constants;
+
+    protected CompiledFunction(Expression[] nodes, Value[] constants) {
+        this.nodes = nodes;
+        this.constants = constants;
+    }
+
+    /**
+     * Evaluates the function body in a frame set up by ClosureVal.apply().
+     */
+    public abstract Value invoke(ValueEnvironment env);
+
+    /**
+     * Evaluates the body of a function with an unboxed Int result.
+     * Such functions generate this, and invoke() boxes its result.
+     */
+    public int invokeInt(ValueEnvironment env) {
+        return JitRuntime.unboxInt(invoke(env));
+    }
+
+    /**
+     * Evaluates the body of a function with an unboxed Bool result, as invokeInt() does for Ints.
+     */
+    public boolean invokeBoolean(ValueEnvironment env) {
+        return JitRuntime.isTrue(invoke(env), false);
+    }
+}
@@ -0,0 +1,49 @@
+package edu.sjsu.stratagem;
+
+import edu.sjsu.stratagem.exception.StratagemException;
+
+/**
+ * Replaces binary operators applied to literals with their results.
+ *
+ * Operators that would fail, like a division by zero, are left for the program to fail on
+ * when it runs.
+ */
+class ConstantFolder implements OptimizationPass {
+    private int foldedCount;
+
+    public String getName() {
+        return "constants";
+    }
+
+    public Expression optimize(Expression e) {
+        e.mapSubexpressions(this::optimize);
+        if (!(e instanceof BinOpExpr)) {
+            return e;
+        }
+
+        BinOpExpr binOp = (BinOpExpr) e;
+        if (!(binOp.getLeft() instanceof ValueExpr) || !(binOp.getRight() instanceof ValueExpr)) {
+            return e;
+        }
+
+        Value result;
+        try {
+            result = binOp.apply(((ValueExpr) binOp.getLeft()).getValue(), ((ValueExpr) binOp.getRight()).getValue());
+        } catch (StratagemException | ArithmeticException ex) {
+            return e;
+        }
+        foldedCount++;
+        return new ValueExpr(result);
+    }
+
+    public String getReport() {
+        return "Constants folded: " + foldedCount;
+    }
+
+    /**
+     * The number of operators folded so far.
+     */
+    int getFoldedCount() {
+        return foldedCount;
+    }
+}
@@ -0,0 +1,90 @@
+package edu.sjsu.stratagem;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Removes expressions from sequences whose values are discarded, when evaluating them
+ * can have no effect.
+ *
+ * An expression has no effect if it cannot print, write a reference, call a function or fail:
+ * literals, variables, function declarations, new references, reads of statically typed
+ * references, and int operators other than division, over operands that have no effect.
+ * The last expression of a sequence is its value, so it is always kept.
+ */
+class DeadCodeEliminator implements OptimizationPass {
+    private int removedCount;
+
+    public String getName() {
+        return "dead-code";
+    }
+
+    public Expression optimize(Expression e) {
+        e.mapSubexpressions(this::optimize);
+        if (!(e instanceof SeqExpr)) {
+            return e;
+        }
+
+        Expression[] exprs = ((SeqExpr) e).getExprs();
+        if (exprs.length == 0) {
+            return e;
+        }
+
+        List<Expression> kept = new ArrayList<>();
+        for (int i = 0; i < exprs.length - 1; i++) {
+            if (isPure(exprs[i])) {
+                removedCount++;
+            } else {
+                kept.add(exprs[i]);
+            }
+        }
+        if (kept.size() == exprs.length - 1) {
+            return e;
+        }
+
+        kept.add(exprs[exprs.length - 1]);
+        return kept.size() == 1 ? kept.get(0) : new SeqExpr(kept);
+    }
+
+    static boolean isPure(Expression e) {
+        if (e instanceof ValueExpr || e instanceof VarExpr || e instanceof FunctionDeclExpr) {
+            return true;
+        }
+        if (e instanceof RefExpr) {
+            return isPure(((RefExpr) e).getValueExpr());
+        }
+        if (e instanceof DerefExpr) {
+            // A reference whose type is not known statically is cast first, which can fail.
+            Expression refExpr = ((DerefExpr) e).getRefExpr();
+            return !(refExpr instanceof CastExpr) && isPure(refExpr);
+        }
+        if (e instanceof BinOpExpr) {
+            BinOpExpr binOp = (BinOpExpr) e;
+            switch (binOp.getOp()) {
+            case EQ:
+            case NE:
+                break;
+            case DIVIDE:
+            case MOD:
+                return false;
+            default:
+                if (!binOp.hasIntOperands()) {
+                    return false;
+                }
+            }
+            return isPure(binOp.getLeft()) && isPure(binOp.getRight());
+        }
+        return false;
+    }
+
+    public String getReport() {
+        return "Dead expressions removed: " + removedCount;
+    }
+
+    /**
+     * The number of expressions removed so far.
+     */
+    int getRemovedCount() {
+        return removedCount;
+    }
+}
@@ -0,0 +1,167 @@
+package edu.sjsu.stratagem;
+
+/**
+ * Replaces references that never escape the let binding they are created in with the
+ * variable itself: let r: Ref Int = ref 0 in (r <- !r + 1; !r) becomes
+ * let r: Int = 0 in (r := r + 1; r), where := is a LocalAssignExpr.
+ * It runs after inlining, which turns calls that pass a new reference into let bindings.
+ *
+ * A reference escapes unless every use of its variable is a read, !r, or a write, r <- e,
+ * whose value is discarded. Any other use could store or return the reference, and a
+ * function that refers to the variable would capture it. The cell then lives in a slot
+ * of the frame, so creating it allocates nothing and using it needs no indirection.
+ */
+class EscapeAnalyzer implements OptimizationPass {
+    private int replacedCount;
+
+    public String getName() {
+        return "escape";
+    }
+
+    public Expression optimize(Expression e) {
+        e.mapSubexpressions(this::optimize);
+        if (!(e instanceof LetExpr)) {
+            return e;
+        }
+
+        LetExpr let = (LetExpr) e;
+        String varName = let.getVarName();
+        RefExpr newRef = newRef(let.getValueExpr());
+        if (newRef == null || escapes(let.getBody(), varName, false)) {
+            return e;
+        }
+
+        replacedCount++;
+        Type cellType = newRef.getCellType();
+        return new LetExpr(varName, cellType, newRef.getValueExpr(), replace(let.getBody(), varName, cellType));
+    }
+
+    /**
+     * The new reference that the let binds, if it binds one, seen through a cast that
+     * leaves its cell type as it is.
+     */
+    private static RefExpr newRef(Expression valueExpr) {
+        if (isOpenCast(valueExpr)) {
+            valueExpr = ((CastExpr) valueExpr).getBody();
+        }
+        return valueExpr instanceof RefExpr ? (RefExpr) valueExpr : null;
+    }
+
+    /**
+     * Whether the expression is the variable, seen through a cast that leaves its cell type as it is.
+     */
+    private static boolean isVar(Expression e, String varName) {
+        if (isOpenCast(e)) {
+            e = ((CastExpr) e).getBody();
+        }
+        return e instanceof VarExpr && ((VarExpr) e).getVarName().equals(varName);
+    }
+
+    /**
+     * Whether the expression is a cast to ? or to Ref ?, which always succeeds on a reference.
+     */
+    private static boolean isOpenCast(Expression e) {
+        if (!(e instanceof CastExpr)) {
+            return false;
+        }
+        Type target = ((CastExpr) e).getTarget();
+        return target == AnyType.singleton || target == RefType.of(AnyType.singleton);
+    }
+
+    /**
+     * Whether the reference bound to the variable could be used other than by reads and
+     * by writes whose values are discarded, within the expression.
+     */
+    private static boolean escapes(Expression e, String varName, boolean discarded) {
+        if (e instanceof VarExpr) {
+            return ((VarExpr) e).getVarName().equals(varName);
+        }
+        if (e instanceof DerefExpr && isVar(((DerefExpr) e).getRefExpr(), varName)) {
+            return false;
+        }
+        if (e instanceof AssignExpr && isVar(((AssignExpr) e).getRefExpr(), varName)) {
+            // An assignment evaluates to the reference itself.
+            return !discarded || escapes(((AssignExpr) e).getValueExpr(), varName, false);
+        }
+
+        // Closures capture the reference, and a binding of the same name would hide it.
+        if (e instanceof FunctionDeclExpr) {
+            return refersTo(e, varName);
+        }
+        if (e instanceof LetExpr && ((LetExpr) e).getVarName().equals(varName)
+                || e instanceof LetRecExpr && ((LetRecExpr) e).getVarName().equals(varName)) {
+            return true;
+        }
+
+        if (e instanceof SeqExpr) {
+            Expression[] exprs = ((SeqExpr) e).getExprs();
+            for (int i = 0; i < exprs.length; i++) {
+                if (escapes(exprs[i], varName, discarded || i < exprs.length - 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (e instanceof WhileExpr) {
+            WhileExpr loop = (WhileExpr) e;
+            return escapes(loop.getCondition(), varName, false) || escapes(loop.getBody(), varName, true);
+        }
+        if (e instanceof IfExpr) {
+            IfExpr ifExpr = (IfExpr) e;
+            return escapes(ifExpr.getCondition(), varName, false)
+                    || escapes(ifExpr.getThen(), varName, discarded)
+                    || escapes(ifExpr.getElse(), varName, discarded);
+        }
+
+        boolean[] found = { false };
+        e.mapSubexpressions(sub -> {
+            found[0] |= escapes(sub, varName, false);
+            return sub;
+        });
+        return found[0];
+    }
+
+    private static boolean refersTo(Expression e, String varName) {
+        if (e instanceof VarExpr) {
+            return ((VarExpr) e).getVarName().equals(varName);
+        }
+        boolean[] refers = { false };
+        e.mapSubexpressions(sub -> {
+            refers[0] |= refersTo(sub, varName);
+            return sub;
+        });
+        return refers[0];
+    }
+
+    /**
+     * Rewrites the reads and writes of a reference that does not escape into uses of the variable.
+     */
+    private static Expression replace(Expression e, String varName, Type cellType) {
+        e.mapSubexpressions(sub -> replace(sub, varName, cellType));
+        if (e instanceof DerefExpr && isVar(((DerefExpr) e).getRefExpr(), varName)) {
+            return new VarExpr(varName);
+        }
+        if (e instanceof AssignExpr && isVar(((AssignExpr) e).getRefExpr(), varName)) {
+            AssignExpr assign = (AssignExpr) e;
+            Expression valueExpr = assign.getValueExpr();
+
+            // A write through Ref ? was checked against the cell type, so check it here instead.
+            if (assign.getCellType() != cellType && cellType != AnyType.singleton) {
+                valueExpr = new CastExpr(cellType, valueExpr, assign.getCellType());
+            }
+            return new LocalAssignExpr(varName, valueExpr);
+        }
+        return e;
+    }
+
+    public String getReport() {
+        return "References replaced by variables: " + replacedCount;
+    }
+
+    /**
+     * The number of references replaced so far.
+     */
+    int getReplacedCount() {
+        return replacedCount;
+    }
+}
@@ -1,10 +1,13 @@
 package edu.sjsu.stratagem;
 
+import edu.sjsu.stratagem.bytecode.CodeBuilder;
+import edu.sjsu.stratagem.bytecode.Label;
 import edu.sjsu.stratagem.exception.StratagemCastException;
 import edu.sjsu.stratagem.exception.StratagemRuntimeException;
 import edu.sjsu.stratagem.exception.StratagemTypecheckException;
 
 import java.util.List;
+import java.util.function.UnaryOperator;
 
 /**
  * Stratagem expressions.
@@ -16,10 +19,97 @@ public interface Expression {
      */
     Type typecheck(TypeEnvironment env);
 
+    /**
+     * Resolves variable references to lexical addresses in the context of the specified scope.
+     * Returns the expression that should be evaluated in place of this one.
+     * Must be called after typecheck(), since typechecking may insert casts.
+     */
+    Expression resolve(Scope scope);
+
+    /**
+     * Informs the expression that its value is the result of the function whose body contains it.
+     * Calls in tail position do not need to return to their caller, so they run in constant stack space.
+     * Expressions that cannot contain a call in tail position ignore this.
+     */
+    default void markTailPosition() {}
+
+    /**
+     * Replaces each direct subexpression with the result of applying the function to it.
+     * Optimization passes use this to rewrite the tree between typecheck() and resolve().
+     */
+    default void mapSubexpressions(UnaryOperator<Expression> f) {}
+
     /**
      * Evaluate the expression in the context of the specified environment.
      */
     Value evaluate(ValueEnvironment env);
+
+    /**
+     * Evaluates an int-typed expression to a Java int.
+     * Expressions that compute ints directly override this, so their results are never boxed.
+     */
+    default int evaluateInt(ValueEnvironment env) {
+        Value v = evaluate(env);
+
+        // Proxies cast values crossing from untyped code, so this should not fail.
+        // It keeps a mistake from surfacing as a ClassCastException.
+        if (!(v instanceof IntVal)) {
+            throw new StratagemCastException("Expected int, but got " + v);
+        }
+        return ((IntVal) v).toInt();
+    }
+
+    /**
+     * Evaluates a bool-typed expression to a Java boolean.
+     */
+    default boolean evaluateBoolean(ValueEnvironment env) {
+        Value v = evaluate(env);
+        if (!(v instanceof BoolVal)) {
+            throw new StratagemRuntimeException("Expected boolean, but got " + v);
+        }
+        return ((BoolVal) v).toBoolean();
+    }
+
+    /**
+     * Emits JVM bytecode that leaves the value of the expression on the stack.
+     * Expressions that the JitCompiler has no translation for fall back to evaluate().
+     */
+    default void emitBytecode(JitCompiler jit) {
+        jit.emitFallback(this);
+    }
+
+    /**
+     * Emits JVM bytecode that leaves the value of an int-typed expression on the stack as a Java int.
+     */
+    default void emitIntBytecode(JitCompiler jit) {
+        emitBytecode(jit);
+        jit.emitUnboxInt();
+    }
+
+    /**
+     * Emits JVM bytecode that branches to the target if the value of a bool-typed expression is false.
+     */
+    default void emitConditionBytecode(JitCompiler jit, Label falseTarget) {
+        emitBytecode(jit);
+        jit.emitBranchIfFalse(falseTarget, false);
+    }
+
+    /**
+     * Emits VirtualMachine instructions that push the value of the expression.
+     * Expressions that the VmCompiler has no translation for fall back to evaluate().
+     */
+    default void emitInstructions(VmCompiler vm) {
+        vm.emitFallback(this);
+    }
+
+    /**
+     * Emits VirtualMachine instructions that branch if the value of a bool-typed expression is false.
+     * Returns the position of the branch target, which the caller patches.
+     */
+    default int emitConditionInstructions(VmCompiler vm) {
+        emitInstructions(vm);
+        return vm.emitConditionJump(false);
+    }
 }
 
 // NOTE: Using package access so that all implementations of Expression
@@ -28,6 +118,8 @@ public interface Expression {
 class AssignExpr implements Expression {
     private Expression refExpr;
     private Expression valueExpr;
+    private Type cellType;
+    private boolean checksValue;
 
     AssignExpr(Expression refExpr, Expression valueExpr) {
         this.refExpr = refExpr;
@@ -45,36 +137,90 @@ class AssignExpr implements Expression {
                 throw new StratagemTypecheckException("Inconsistent reference type: expected Ref, got " + refType);
             }
 
-            // Wrap the refExpr in a cast to ensure it can be assigned to at runtime.
-            refType = new RefType(valueType);
-            refExpr = new CastExpr(refType, refExpr);
+            // Wrap the refExpr in a cast to ensure it can be assigned to at runtime. Casting to Ref valueType
+            // would tighten the cell for good, so leave the cell type open and check the write instead.
+            refType = RefType.of(AnyType.singleton);
+            refExpr = new CastExpr(refType, refExpr, AnyType.singleton);
         }
 
         // refType is necessarily a RefType now. Great!
         RefType refType_ = (RefType) refType;
         Type refCellType = refType_.getCellType();
 
-        // Cast insertion rule (CAssign2).
-        if (!(refCellType.equals(valueType))) {
+        // A reference whose static cell type is precise has exactly that cell type at runtime, so only writes
+        // through imprecise references need to be checked against the cell.
+        cellType = refCellType;
+        checksValue = !TypeTable.isStatic(refCellType);
+
+        // Cast insertion rule (CAssign2), after instantiating a generic value for the cell.
+        Type genericValueType = valueType;
+        valueType = Instantiation.instantiate(valueType, refCellType, env);
+        valueExpr = Instantiation.cast(valueExpr, genericValueType, valueType);
+        if (refCellType != valueType) {
             if (!refCellType.consistentWith(valueType)) {
                 throw new StratagemTypecheckException(
                         "Inconsistent assignment type: expected " + refCellType + ", got " + valueType);
             }
 
             // Wrap the argument in a cast to ensure it can be given to our closureExpr at runtime.
-            valueExpr = new CastExpr(refCellType, valueExpr);
+            valueExpr = new CastExpr(refCellType, valueExpr, valueType);
         }
 
         // Typing rule (TAssign).
         return refType;
     }
 
+    Expression getRefExpr() {
+        return refExpr;
+    }
+
+    Expression getValueExpr() {
+        return valueExpr;
+    }
+
+    /**
+     * The cell type of the reference, as far as it is known statically.
+     */
+    Type getCellType() {
+        return cellType;
+    }
+
+    public Expression resolve(Scope scope) {
+        refExpr = refExpr.resolve(scope);
+        valueExpr = valueExpr.resolve(scope);
+        return this;
+    }
+
+    public void mapSubexpressions(UnaryOperator<Expression> f) {
+        refExpr = f.apply(refExpr);
+        valueExpr = f.apply(valueExpr);
+    }
+
     public Value evaluate(ValueEnvironment env) {
         RefVal ref = (RefVal) refExpr.evaluate(env);
+
+        // Ints and booleans go into cells of exactly their type without being boxed.
+        if (!checksValue && cellType == IntType.singleton) {
+            ref.assignInt(valueExpr.evaluateInt(env));
+            return ref;
+        }
+        if (!checksValue && cellType == BoolType.singleton) {
+            ref.assignBoolean(valueExpr.evaluateBoolean(env));
+            return ref;
+        }
+
         Value value = valueExpr.evaluate(env);
-        ref.assign(value);
+        if (checksValue) {
+            ref.assignChecked(value);
+        } else {
+            ref.assign(value);
+        }
         return ref;
     }
+
+    public void emitInstructions(VmCompiler vm) {
+        vm.emitAssign(refExpr, valueExpr, checksValue);
+    }
 }
 
 /**
@@ -85,6 +231,8 @@ class BinOpExpr implements Expression {
     private Op op;
     private Expression e1;
     private Expression e2;
+    private Type t1;
+    private Type t2;
 
     BinOpExpr(Op op, Expression e1, Expression e2) {
         this.op = op;
@@ -93,13 +241,14 @@ class BinOpExpr implements Expression {
     }
 
     public Type typecheck(TypeEnvironment env) {
-        Type t1 = e1.typecheck(env);
-        Type t2 = e2.typecheck(env);
+        t1 = e1.typecheck(env);
+        t2 = e2.typecheck(env);
 
         switch (op) {
         case EQ:
         case NE:
-            if (!t1.consistentWith(t2)) {
+            // Neither side is cast to the other's type, so either may be the more precise.
+            if (!t1.consistentWith(t2) && !t2.consistentWith(t1)) {
                 throw new StratagemTypecheckException(
                         "Binary operator expected identical types, got: " + t1 + " and " + t2);
             }
@@ -109,21 +258,72 @@ class BinOpExpr implements Expression {
                 throw new StratagemTypecheckException(
                         "Binary operator expected integer arguments, got: " + t1 + " and " + t2);
             }
-            return IntType.singleton;
+            switch (op) {
+            case GT:
+            case GE:
+            case LT:
+            case LE:
+                return BoolType.singleton;
+            default:
+                return IntType.singleton;
+            }
         }
     }
 
-    @SuppressWarnings("incomplete-switch")
+    Op getOp() {
+        return op;
+    }
+
+    Expression getLeft() {
+        return e1;
+    }
+
+    Expression getRight() {
+        return e2;
+    }
+
+    /**
+     * Whether both operands are statically known to be ints.
+     */
+    boolean hasIntOperands() {
+        return t1 == IntType.singleton && t2 == IntType.singleton;
+    }
+
+    public void mapSubexpressions(UnaryOperator<Expression> f) {
+        e1 = f.apply(e1);
+        e2 = f.apply(e2);
+    }
+
+    public Expression resolve(Scope scope) {
+        e1 = e1.resolve(scope);
+        e2 = e2.resolve(scope);
+
+        // Both operands are statically known to be ints, so the runtime checks can be skipped.
+        if (hasIntOperands()) {
+            return IntBinOpExpr.create(op, e1, e2);
+        }
+        return this;
+    }
+
     public Value evaluate(ValueEnvironment env) {
-        Value v1 = e1.evaluate(env);
-        Value v2 = e2.evaluate(env);
+        return apply(e1.evaluate(env), e2.evaluate(env));
+    }
+
+    public void emitInstructions(VmCompiler vm) {
+        vm.emitBinOp(this, e1, e2);
+    }
 
+    /**
+     * Applies the operator to the values of the operands.
+     */
+    @SuppressWarnings("incomplete-switch")
+    Value apply(Value v1, Value v2) {
         // Special cases switch
         switch (op) {
         case EQ:
-            return new BoolVal(v1.equals(v2));
+            return BoolVal.of(v1.equals(v2));
         case NE:
-            return new BoolVal(!v1.equals(v2));
+            return BoolVal.of(!v1.equals(v2));
         }
 
         // Int operations case
@@ -136,23 +336,23 @@ class BinOpExpr implements Expression {
 
         switch(op) {
         case ADD:
-            return new IntVal(i + j);
+            return IntVal.of(i + j);
         case SUBTRACT:
-            return new IntVal(i - j);
+            return IntVal.of(i - j);
         case MULTIPLY:
-            return new IntVal(i * j);
+            return IntVal.of(i * j);
         case DIVIDE:
-            return new IntVal(i / j);
+            return IntVal.of(i / j);
         case MOD:
-            return new IntVal(i % j);
+            return IntVal.of(i % j);
         case GT:
-            return new BoolVal(i > j);
+            return BoolVal.of(i > j);
         case GE:
-            return new BoolVal(i >= j);
+            return BoolVal.of(i >= j);
         case LT:
-            return new BoolVal(i < j);
+            return BoolVal.of(i < j);
         case LE:
-            return new BoolVal(i <= j);
+            return BoolVal.of(i <= j);
         }
 
         throw new StratagemRuntimeException("Unrecognized operator: " + op);
@@ -161,35 +361,202 @@ class BinOpExpr implements Expression {
 
 /**
  * Runtime cast from a type involving an Any to a concrete type.
+ *
+ * Values carry their canonical runtime type, so a value whose type is the target passes with
+ * a single comparison. Other values are checked by the CastChecker for the target type,
+ * which is shared with every other cast to that type.
  */
 class CastExpr implements Expression {
     private Type target;
     private Expression body;
+    private Type sourceType;
+    private CastChecker checker;
 
     CastExpr(Type target, Expression body) {
-        this.target = target;
+        // Values of types with type variables have the erased type at runtime.
+        this.target = TypeTable.erase(target);
         this.body = body;
+        this.checker = CastChecker.of(this.target);
+    }
+
+    /**
+     * A cast inserted by typechecking, from a body whose type is already known.
+     */
+    CastExpr(Type target, Expression body, Type sourceType) {
+        this(target, body);
+        this.sourceType = sourceType;
     }
 
     public Type typecheck(TypeEnvironment env) {
-        // Continue typechecking the body, but discard its result here.
-        body.typecheck(env);
+        // Continue typechecking the body, but only record its result here.
+        sourceType = body.typecheck(env);
+
+        return target;
+    }
 
+    Type getTarget() {
         return target;
     }
 
+    Expression getBody() {
+        return body;
+    }
+
+    CastChecker getChecker() {
+        return checker;
+    }
+
+    /**
+     * The static type of the body, or null if the cast has not been typechecked.
+     */
+    Type getSourceType() {
+        return sourceType;
+    }
+
+    public Expression resolve(Scope scope) {
+        body = body.resolve(scope);
+        return this;
+    }
+
+    public void mapSubexpressions(UnaryOperator<Expression> f) {
+        body = f.apply(body);
+    }
+
     public Value evaluate(ValueEnvironment env) {
-        Value v = body.evaluate(env);
-        if (v.getType().consistentWith(target)) {
+        return check(body.evaluate(env));
+    }
+
+    public void emitBytecode(JitCompiler jit) {
+        jit.emitCast(this, body);
+    }
+
+    public void emitInstructions(VmCompiler vm) {
+        body.emitInstructions(vm);
+        vm.emitUnary(VirtualMachine.CAST, this);
+    }
+
+    /**
+     * Checks that the value of the body can be cast to the target type.
+     */
+    Value check(Value v) {
+        if (v.getType() == target) {
             return v;
-        } else {
-            throw new StratagemCastException(null);
         }
+        return checker.check(v);
+    }
+
+    /**
+     * Casts a value to a type. Casting a closure to a function type gives a proxy,
+     * which casts the arguments and results of calls as well. Casting a reference
+     * tightens the type of its cell in place.
+     */
+    static Value cast(Value v, Type target) {
+        if (v.getType() == target) {
+            return v;
+        }
+        return CastChecker.of(target).check(v);
+    }
+}
+
+/**
+ * The cast of a callee to the function type its call needs, inserted by rule (CApp1).
+ *
+ * Most call sites only ever call closures of one function type, or a few, so each site
+ * remembers the types it has seen. A closure of a remembered type is known to be consistent
+ * with the target. If the proxy for it would cast neither the arguments nor the result, the
+ * closure is called directly, so the call neither checks anything nor goes through a proxy.
+ * Sites that see more than a few types fall back to the generic cast.
+ */
+class CalleeCastExpr extends CastExpr {
+    static final int POLYMORPHIC_LIMIT = 4;
+
+    // The first type seen, checked before any others.
+    private ClosureType monomorphicType;
+    private boolean monomorphicDirect;
+
+    private ClosureType[] polymorphicTypes;
+    private boolean[] polymorphicDirect;
+    private int polymorphicCount;
+
+    CalleeCastExpr(CastExpr cast) {
+        super(cast.getTarget(), cast.getBody(), cast.getSourceType());
+    }
+
+    Value check(Value v) {
+        // Proxies are left to the generic cast, which composes their coercions.
+        if (!(v instanceof ClosureVal) || ((ClosureVal) v).isProxy()) {
+            return super.check(v);
+        }
+        ClosureVal closure = (ClosureVal) v;
+        Type type = closure.getType();
+
+        if (type == monomorphicType) {
+            return monomorphicDirect ? closure : closure.castTo((ClosureType) getTarget());
+        }
+        for (int i = 0; i < polymorphicCount; i++) {
+            if (polymorphicTypes[i] == type) {
+                return polymorphicDirect[i] ? closure : closure.castTo((ClosureType) getTarget());
+            }
+        }
+
+        Value result = super.check(v);
+        boolean direct = result == closure || !isChecking(((ClosureVal) result).getCoercion());
+        if (monomorphicType == null) {
+            monomorphicType = (ClosureType) type;
+            monomorphicDirect = direct;
+        } else if (polymorphicCount < POLYMORPHIC_LIMIT) {
+            if (polymorphicTypes == null) {
+                polymorphicTypes = new ClosureType[POLYMORPHIC_LIMIT];
+                polymorphicDirect = new boolean[POLYMORPHIC_LIMIT];
+            }
+            polymorphicTypes[polymorphicCount] = (ClosureType) type;
+            polymorphicDirect[polymorphicCount] = direct;
+            polymorphicCount++;
+        }
+        return direct ? closure : result;
+    }
+
+    private static boolean isChecking(Coercion coercion) {
+        return coercion != null && (coercion.checksArguments() || coercion.checksResult());
+    }
+}
+
+/**
+ * A free variable of a function, read from the values its closure captured.
+ */
+class CapturedVarExpr implements Expression {
+    private String varName;
+    private int index;
+
+    CapturedVarExpr(String varName, int index) {
+        this.varName = varName;
+        this.index = index;
+    }
+
+    public Type typecheck(TypeEnvironment env) {
+        return env.resolveVar(varName);
+    }
+
+    public Expression resolve(Scope scope) {
+        return this;
+    }
+
+    public Value evaluate(ValueEnvironment env) {
+        return env.getCaptured(index);
+    }
+
+    public void emitBytecode(JitCompiler jit) {
+        jit.emitGetCaptured(index);
+    }
+
+    public void emitInstructions(VmCompiler vm) {
+        vm.emitLoadCaptured(index);
     }
 }
 
 class DerefExpr implements Expression {
     private Expression refExpr;
+    private Type cellType;
 
     DerefExpr(Expression refExpr) {
         this.refExpr = refExpr;
@@ -205,38 +572,86 @@ class DerefExpr implements Expression {
             }
 
             // Wrap the refExpr in a cast to ensure it can be assigned to at runtime.
-            refType = new RefType(AnyType.singleton);
-            refExpr = new CastExpr(refType, refExpr);
+            refType = RefType.of(AnyType.singleton);
+            refExpr = new CastExpr(refType, refExpr, AnyType.singleton);
         }
 
         RefType refType_ = (RefType) refType;
+        cellType = refType_.getCellType();
 
         // Typing rule (TDeref).
-        return refType_.getCellType();
+        return cellType;
+    }
+
+    Expression getRefExpr() {
+        return refExpr;
+    }
+
+    public Expression resolve(Scope scope) {
+        refExpr = refExpr.resolve(scope);
+        return this;
+    }
+
+    public void mapSubexpressions(UnaryOperator<Expression> f) {
+        refExpr = f.apply(refExpr);
     }
 
     public Value evaluate(ValueEnvironment env) {
         RefVal ref = (RefVal) refExpr.evaluate(env);
         return ref.dereference();
     }
+
+    public int evaluateInt(ValueEnvironment env) {
+        if (cellType != IntType.singleton) {
+            return Expression.super.evaluateInt(env);
+        }
+        return ((RefVal) refExpr.evaluate(env)).dereferenceInt();
+    }
+
+    public boolean evaluateBoolean(ValueEnvironment env) {
+        if (cellType != BoolType.singleton) {
+            return Expression.super.evaluateBoolean(env);
+        }
+        return ((RefVal) refExpr.evaluate(env)).dereferenceBoolean();
+    }
+
+    public void emitInstructions(VmCompiler vm) {
+        refExpr.emitInstructions(vm);
+        vm.emitUnary(VirtualMachine.DEREF);
+    }
 }
 
 /**
  * Function application.
+ *
+ * Once resolved, calls with up to four arguments are made by a node specialized for their
+ * number, which binds the arguments without looping over them.
  */
 class FunctionAppExpr implements Expression {
     private Expression closureExpr;
-    private Expression arg;
+    private Expression[] args;
+    private boolean tail;
+
+    // The return type of a generic callee, and the type this call instantiated it to.
+    private Type genericReturnType;
+    private Type returnType;
 
     FunctionAppExpr(Expression closureExpr, Expression arg) {
+        this(closureExpr, new Expression[] { arg });
+    }
+
+    FunctionAppExpr(Expression closureExpr, Expression[] args) {
         this.closureExpr = closureExpr;
-        this.arg = arg;
+        this.args = args;
     }
 
     public Type typecheck(TypeEnvironment env) {
         // Typecheck the closureExpr and args under this application.
         Type closureType = closureExpr.typecheck(env);
-        Type argType = arg.typecheck(env);
+        Type[] argTypes = new Type[args.length];
+        for (int i = 0; i < args.length; i++) {
+            argTypes[i] = args[i].typecheck(env);
+        }
 
         // Make sure our closureExpr expression can result in a closure.
         if (!(closureType instanceof ClosureType) && closureType != AnyType.singleton) {
@@ -245,144 +660,1377 @@ class FunctionAppExpr implements Expression {
 
         // Cast insertion rule (CApp1).
         if (closureType == AnyType.singleton) {
-            // Wrap the closureExpr in a cast to ensure it can take our argument at runtime.
-            closureType = new ClosureType(argType, AnyType.singleton);
-            closureExpr = new CastExpr(closureType, closureExpr);
+            // Wrap the closureExpr in a cast to ensure it can take our arguments at runtime.
+            closureType = ClosureType.of(argTypes, AnyType.singleton);
+            closureExpr = new CastExpr(closureType, closureExpr, AnyType.singleton);
         }
 
         // closureType is necessarily a ClosureType now. Great!
         ClosureType closureType_ = (ClosureType) closureType;
-        Type closureArgType = closureType_.getArgType();
+
+        if (closureType_.getArity() != args.length) {
+            throw new StratagemTypecheckException(
+                    "Wrong number of arguments: expected " + closureType_.getArity() +
+                                            ", got "      + args.length);
+        }
+
+        // A generic function is instantiated for the arguments of each call, and so are generic arguments for
+        // the parameters they are passed to.
+        boolean generic = Instantiation.isGeneric(closureType_, env);
+        for (Type argType : argTypes) {
+            generic |= Instantiation.isGeneric(argType, env);
+        }
+        if (generic) {
+            genericReturnType = closureType_.getReturnType();
+            Instantiation instantiation = new Instantiation(env);
+            closureType_ = (ClosureType) instantiation.fresh(closureType_);
+            for (int i = 0; i < args.length; i++) {
+                argTypes[i] = instantiation.fresh(argTypes[i]);
+                instantiation.match(closureType_.getArgType(i), argTypes[i]);
+            }
+            closureType_ = (ClosureType) instantiation.apply(closureType_);
+            for (int i = 0; i < args.length; i++) {
+                Type genericArgType = argTypes[i];
+                argTypes[i] = instantiation.apply(argTypes[i]);
+                args[i] = Instantiation.cast(args[i], genericArgType, argTypes[i]);
+            }
+            returnType = closureType_.getReturnType();
+        }
         Type closureReturnType = closureType_.getReturnType();
 
         // Cast insertion rule (CApp2).
-        if (!closureArgType.equals(argType)) {
-            if (!closureArgType.consistentWith(argType)) {
-                throw new StratagemTypecheckException(
-                        "Inconsistent argument type: expected " + closureArgType +
-                                                  ", got "      + argType);
+        for (int i = 0; i < args.length; i++) {
+            Type closureArgType = closureType_.getArgType(i);
+            if (closureArgType != argTypes[i]) {
+                if (!closureArgType.consistentWith(argTypes[i])) {
+                    throw new StratagemTypecheckException(
+                            "Inconsistent argument type: expected " + closureArgType +
+                                                      ", got "      + argTypes[i]);
+                }
+
+                // Wrap the argument in a cast to ensure it can be given to our closureExpr at runtime.
+                args[i] = new CastExpr(closureArgType, args[i], argTypes[i]);
             }
-
-            // Wrap the argument in a cast to ensure it can be given to our closureExpr at runtime.
-            arg = new CastExpr(closureArgType, arg);
         }
 
         // Typing rule (TApp).
         return closureReturnType;
     }
 
-    public Value evaluate(ValueEnvironment env) {
-        ClosureVal closure = (ClosureVal) closureExpr.evaluate(env);
-        Value argVal = arg.evaluate(env);
-        return closure.apply(argVal);
-    }
-}
-
-/**
- * A function declaration, which evaluates to a closure.
- */
-class FunctionDeclExpr implements Expression {
-    private String paramName;
-    private Type paramType;
-    private Type returnType;
-    private Expression body;
+    public Expression resolve(Scope scope) {
+        closureExpr = closureExpr.resolve(scope);
+        for (int i = 0; i < args.length; i++) {
+            args[i] = args[i].resolve(scope);
+        }
 
-    FunctionDeclExpr(String paramName, Type paramType, Expression body) {
-        this.paramName = paramName;
-        this.paramType = paramType;
-        this.returnType = null;
-        this.body = body;
+        // Cache the types of the closures called here, so that a cast inserted by rule (CApp1)
+        // does not check each call again.
+        if (closureExpr instanceof CastExpr && ((CastExpr) closureExpr).getTarget() instanceof ClosureType) {
+            closureExpr = new CalleeCastExpr((CastExpr) closureExpr);
+        }
 
-        if (paramType == null) {
-            throw new StratagemTypecheckException(
-                    "FunctionDeclExpr was given a null param type... this means it can't calculate its type");
+        switch (args.length) {
+        case 0:
+            return castResult(new FunctionApp0Expr(closureExpr));
+        case 1:
+            return castResult(new FunctionApp1Expr(closureExpr, args));
+        case 2:
+            return castResult(new FunctionApp2Expr(closureExpr, args));
+        case 3:
+            return castResult(new FunctionApp3Expr(closureExpr, args));
+        case 4:
+            return castResult(new FunctionApp4Expr(closureExpr, args));
+        default:
+            return castResult(this);
         }
     }
 
-    public Type typecheck(TypeEnvironment outerEnv) {
-        TypeEnvironment innerEnv = new TypeEnvironment(outerEnv);
-        innerEnv.createVar(paramName, paramType);
+    /**
+     * Casts the result of a generic callee to the type this call instantiated it to, as in
+     * fn(x: 'a) { ref x }(3), whose reference has a cell of type ? until it is cast to Ref Int.
+     * The call is then no longer in tail position, since the cast needs its result.
+     */
+    Expression castResult(Expression call) {
+        if (genericReturnType == null) {
+            return call;
+        }
+        return Instantiation.cast(call, genericReturnType, returnType);
+    }
 
-        // Infer the type for function body based on what we find.
-        returnType = body.typecheck(innerEnv);
+    public void mapSubexpressions(UnaryOperator<Expression> f) {
+        closureExpr = f.apply(closureExpr);
+        for (int i = 0; i < args.length; i++) {
+            args[i] = f.apply(args[i]);
+        }
+    }
 
-        return new ClosureType(paramType, returnType);
+    public void markTailPosition() {
+        tail = true;
     }
 
     public Value evaluate(ValueEnvironment env) {
-        if (returnType == null) {
-            throw new StratagemRuntimeException(
-                    "FunctionDeclExpr has a null return type... did you typecheck() it yet?");
+        ClosureVal closure = (ClosureVal) closureExpr.evaluate(env);
+        ValueEnvironment frame = closure.newFrame();
+        bindArguments(frame, env);
+        if (tail) {
+            // Let the trampoline in ClosureVal.call() make the call once this frame is done.
+            return env.requestTailCall(closure, frame);
         }
-        return new ClosureVal(paramName, paramType, returnType, body, env);
+        return closure.call(frame);
     }
-}
-
-/**
- * If-then-else expressions.
- * Unlike JS, if expressions return a value.
- */
-class IfExpr implements Expression {
-    private Expression cond;
-    private Expression thn;
-    private Expression els;
 
-    IfExpr(Expression cond, Expression thn, Expression els) {
-        this.cond = cond;
-        this.thn = thn;
-        this.els = els;
+    /**
+     * Calls in tail position hand their result to the trampoline boxed, so only the others are unboxed.
+     */
+    public int evaluateInt(ValueEnvironment env) {
+        if (tail) {
+            return Expression.super.evaluateInt(env);
+        }
+        ClosureVal closure = (ClosureVal) closureExpr.evaluate(env);
+        ValueEnvironment frame = closure.newFrame();
+        bindArguments(frame, env);
+        return closure.callInt(frame);
     }
 
-    public Type typecheck(TypeEnvironment env) {
-        Type condT = cond.typecheck(env);
-        Type thnT = thn.typecheck(env);
-        Type elsT = els.typecheck(env);
-
-        // Make sure our condition expression can result in a boolean.
-        if (condT != BoolType.singleton && condT != AnyType.singleton) {
-            throw new StratagemTypecheckException("If-expression expected boolean in condition, got: " + condT);
+    public boolean evaluateBoolean(ValueEnvironment env) {
+        if (tail) {
+            return Expression.super.evaluateBoolean(env);
+        }
+        ClosureVal closure = (ClosureVal) closureExpr.evaluate(env);
+        ValueEnvironment frame = closure.newFrame();
+        bindArguments(frame, env);
+        return closure.callBoolean(frame);
+    }
+
+    /**
+     * Puts the values of the arguments in the parameter slots of the callee's frame.
+     */
+    void bindArguments(ValueEnvironment frame, ValueEnvironment env) {
+        for (int i = 0; i < args.length; i++) {
+            frame.setSlot(i, args[i].evaluate(env));
+        }
+    }
+
+    Expression getClosureExpr() {
+        return closureExpr;
+    }
+
+    Expression[] getArgs() {
+        return args;
+    }
+
+    boolean isTail() {
+        return tail;
+    }
+
+    public void emitBytecode(JitCompiler jit) {
+        jit.emitCall(closureExpr, args, tail);
+    }
+
+    public void emitIntBytecode(JitCompiler jit) {
+        if (tail) {
+            Expression.super.emitIntBytecode(jit);
+            return;
+        }
+        jit.emitIntCall(closureExpr, args);
+    }
+
+    public void emitConditionBytecode(JitCompiler jit, Label falseTarget) {
+        if (tail) {
+            Expression.super.emitConditionBytecode(jit, falseTarget);
+            return;
+        }
+        jit.emitBooleanCall(closureExpr, args);
+        jit.getCode().jump(CodeBuilder.IFEQ, falseTarget);
+    }
+
+    public void emitInstructions(VmCompiler vm) {
+        vm.emitCall(closureExpr, args, tail);
+    }
+}
+
+class FunctionApp0Expr extends FunctionAppExpr {
+    FunctionApp0Expr(Expression closureExpr) {
+        super(closureExpr, new Expression[0]);
+    }
+
+    void bindArguments(ValueEnvironment frame, ValueEnvironment env) {}
+}
+
+class FunctionApp1Expr extends FunctionAppExpr {
+    private Expression arg0;
+
+    FunctionApp1Expr(Expression closureExpr, Expression[] args) {
+        super(closureExpr, args);
+        arg0 = args[0];
+    }
+
+    public void mapSubexpressions(UnaryOperator<Expression> f) {
+        super.mapSubexpressions(f);
+        arg0 = getArgs()[0];
+    }
+
+    void bindArguments(ValueEnvironment frame, ValueEnvironment env) {
+        frame.setSlot(0, arg0.evaluate(env));
+    }
+}
+
+class FunctionApp2Expr extends FunctionAppExpr {
+    private Expression arg0;
+    private Expression arg1;
+
+    FunctionApp2Expr(Expression closureExpr, Expression[] args) {
+        super(closureExpr, args);
+        arg0 = args[0];
+        arg1 = args[1];
+    }
+
+    public void mapSubexpressions(UnaryOperator<Expression> f) {
+        super.mapSubexpressions(f);
+        arg0 = getArgs()[0];
+        arg1 = getArgs()[1];
+    }
+
+    void bindArguments(ValueEnvironment frame, ValueEnvironment env) {
+        frame.setSlot(0, arg0.evaluate(env));
+        frame.setSlot(1, arg1.evaluate(env));
+    }
+}
+
+class FunctionApp3Expr extends FunctionAppExpr {
+    private Expression arg0;
+    private Expression arg1;
+    private Expression arg2;
+
+    FunctionApp3Expr(Expression closureExpr, Expression[] args) {
+        super(closureExpr, args);
+        arg0 = args[0];
+        arg1 = args[1];
+        arg2 = args[2];
+    }
+
+    public void mapSubexpressions(UnaryOperator<Expression> f) {
+        super.mapSubexpressions(f);
+        arg0 = getArgs()[0];
+        arg1 = getArgs()[1];
+        arg2 = getArgs()[2];
+    }
+
+    void bindArguments(ValueEnvironment frame, ValueEnvironment env) {
+        frame.setSlot(0, arg0.evaluate(env));
+        frame.setSlot(1, arg1.evaluate(env));
+        frame.setSlot(2, arg2.evaluate(env));
+    }
+}
+
+class FunctionApp4Expr extends FunctionAppExpr {
+    private Expression arg0;
+    private Expression arg1;
+    private Expression arg2;
+    private Expression arg3;
+
+    FunctionApp4Expr(Expression closureExpr, Expression[] args) {
+        super(closureExpr, args);
+        arg0 = args[0];
+        arg1 = args[1];
+        arg2 = args[2];
+        arg3 = args[3];
+    }
+
+    public void mapSubexpressions(UnaryOperator<Expression> f) {
+        super.mapSubexpressions(f);
+        arg0 = getArgs()[0];
+        arg1 = getArgs()[1];
+        arg2 = getArgs()[2];
+        arg3 = getArgs()[3];
+    }
+
+    void bindArguments(ValueEnvironment frame, ValueEnvironment env) {
+        frame.setSlot(0, arg0.evaluate(env));
+        frame.setSlot(1, arg1.evaluate(env));
+        frame.setSlot(2, arg2.evaluate(env));
+        frame.setSlot(3, arg3.evaluate(env));
+    }
+}
+
+/**
+ * A function declaration, which evaluates to a closure.
+ * A parameter without a type annotation has a null type until the TypeInferencer gives it
+ * one, and has type ? if typechecking finds it still without one.
+ */
+class FunctionDeclExpr implements Expression {
+    private String[] paramNames;
+    private Type[] paramTypes;
+    private Type returnType;
+    private ClosureType type;
+    private ClosureType runtimeType;
+    private Expression body;
+    private String[] frameLayout;
+    private Expression[] captureSources;
+    private int invocations;
+    private CompiledFunction compiled;
+    private VmFunction instructions;
+    private boolean unboxedEntry;
+
+    FunctionDeclExpr(String paramName, Type paramType, Expression body) {
+        this(new String[] { paramName }, new Type[] { paramType }, body);
+    }
+
+    FunctionDeclExpr(String[] paramNames, Type[] paramTypes, Expression body) {
+        this.paramNames = paramNames;
+        this.paramTypes = paramTypes;
+        this.returnType = null;
+        this.body = body;
+        this.frameLayout = paramNames;
+    }
+
+    public Type typecheck(TypeEnvironment outerEnv) {
+        defaultParamTypes();
+        TypeEnvironment innerEnv = new TypeEnvironment(outerEnv);
+        for (int i = 0; i < paramNames.length; i++) {
+            innerEnv.createVar(paramNames[i], paramTypes[i]);
+
+            // The function is generic in the type variables of its parameters that no enclosing function is
+            // generic in already. Within the body each of them is one unknown type.
+            for (TypeVar typeVar : Instantiation.typeVarsIn(paramTypes[i])) {
+                if (!outerEnv.bindsTypeVar(typeVar)) {
+                    innerEnv.bindTypeVar(typeVar);
+                }
+            }
+        }
+
+        // Infer the type for function body based on what we find.
+        returnType = body.typecheck(innerEnv);
+
+        type = ClosureType.of(paramTypes, returnType);
+        runtimeType = (ClosureType) TypeTable.erase(type);
+        return type;
+    }
+
+    public Expression resolve(Scope outerScope) {
+        Scope innerScope = new Scope(outerScope);
+        for (String paramName : paramNames) {
+            innerScope.createVar(paramName);
+        }
+        body = body.resolve(innerScope);
+        body.markTailPosition();
+        frameLayout = innerScope.getFrameLayout();
+        captureSources = innerScope.getCaptureSources();
+
+        // Int and Bool results can be returned unboxed, unless the body hands its result to the trampoline.
+        unboxedEntry = (returnType == IntType.singleton || returnType == BoolType.singleton)
+                && !containsTailCall(body);
+        return this;
+    }
+
+    private static boolean containsTailCall(Expression e) {
+        if (e instanceof FunctionDeclExpr) {
+            return false;
+        }
+        if (e instanceof FunctionAppExpr && ((FunctionAppExpr) e).isTail()) {
+            return true;
+        }
+        boolean[] found = { false };
+        e.mapSubexpressions(sub -> {
+            found[0] |= containsTailCall(sub);
+            return sub;
+        });
+        return found[0];
+    }
+
+    public void mapSubexpressions(UnaryOperator<Expression> f) {
+        body = f.apply(body);
+    }
+
+    public Value evaluate(ValueEnvironment env) {
+        if (returnType == null) {
+            throw new StratagemRuntimeException(
+                    "FunctionDeclExpr has a null return type... did you typecheck() it yet?");
+        }
+
+        // Unresolved functions look their free variables up by name, so they hold on to the whole environment.
+        if (captureSources == null) {
+            return new ClosureVal(this, env);
+        }
+
+        // Resolved functions copy just the values of their free variables.
+        Value[] captured = new Value[captureSources.length];
+        for (int i = 0; i < captured.length; i++) {
+            captured[i] = captureSources[i].evaluate(env);
+        }
+        return new ClosureVal(this, captured);
+    }
+
+    public void emitInstructions(VmCompiler vm) {
+        // Unresolved functions need the whole environment, which the VM does not keep.
+        if (captureSources == null) {
+            vm.emitFallback(this);
+            return;
+        }
+        vm.emitClosure(this, captureSources);
+    }
+
+    String[] getParamNames() {
+        return paramNames;
+    }
+
+    Type[] getParamTypes() {
+        return paramTypes;
+    }
+
+    void setParamType(int i, Type paramType) {
+        paramTypes[i] = paramType;
+    }
+
+    /**
+     * Gives the parameters that were neither annotated nor inferred the type ?.
+     */
+    void defaultParamTypes() {
+        for (int i = 0; i < paramTypes.length; i++) {
+            if (paramTypes[i] == null) {
+                paramTypes[i] = AnyType.singleton;
+            }
+        }
+    }
+
+    Type getReturnType() {
+        return returnType;
+    }
+
+    ClosureType getType() {
+        return type;
+    }
+
+    /**
+     * The type of the function's closures at runtime, which is its type with the type variables erased.
+     */
+    ClosureType getRuntimeType() {
+        return runtimeType;
+    }
+
+    Expression getBody() {
+        return body;
+    }
+
+    String[] getFrameLayout() {
+        return frameLayout;
+    }
+
+    /**
+     * The expressions that give the values the closure captures, or null if the function is unresolved.
+     */
+    Expression[] getCaptureSources() {
+        return captureSources;
+    }
+
+    /**
+     * The body compiled for the VirtualMachine, or null if the VM has not compiled it.
+     */
+    VmFunction getInstructions() {
+        return instructions;
+    }
+
+    void setInstructions(VmFunction instructions) {
+        this.instructions = instructions;
+    }
+
+    /**
+     * Whether calls to the function can get its Int or Bool result unboxed, through invokeInt() or invokeBoolean().
+     */
+    boolean hasUnboxedEntry() {
+        return unboxedEntry;
+    }
+
+    /**
+     * Evaluates the body in a frame set up for a call.
+     * Once the function has been called often enough, its body is compiled to JVM bytecode.
+     * Unresolved functions look their variables up by name, so they are never compiled.
+     */
+    Value invoke(ValueEnvironment frame) {
+        if (compiled != null) {
+            return compiled.invoke(frame);
+        }
+        if (++invocations == JitCompiler.threshold && captureSources != null) {
+            compiled = JitCompiler.compile(this);
+        }
+        return body.evaluate(frame);
+    }
+
+    /**
+     * Like invoke(), for functions with an unboxed Int result.
+     */
+    int invokeInt(ValueEnvironment frame) {
+        if (compiled != null) {
+            return compiled.invokeInt(frame);
+        }
+        if (++invocations == JitCompiler.threshold && captureSources != null) {
+            compiled = JitCompiler.compile(this);
+        }
+        return body.evaluateInt(frame);
+    }
+
+    /**
+     * Like invoke(), for functions with an unboxed Bool result.
+     */
+    boolean invokeBoolean(ValueEnvironment frame) {
+        if (compiled != null) {
+            return compiled.invokeBoolean(frame);
+        }
+        if (++invocations == JitCompiler.threshold && captureSources != null) {
+            compiled = JitCompiler.compile(this);
+        }
+        return body.evaluateBoolean(frame);
+    }
+}
+
+/**
+ * If-then-else expressions.
+ * Unlike JS, if expressions return a value.
+ */
+class IfExpr implements Expression {
+    private Expression cond;
+    private Expression thn;
+    private Expression els;
+    private boolean condIsCast;
+
+    IfExpr(Expression cond, Expression thn, Expression els) {
+        this.cond = cond;
+        this.thn = thn;
+        this.els = els;
+    }
+
+    public Type typecheck(TypeEnvironment env) {
+        Type condT = cond.typecheck(env);
+        Type thnT = thn.typecheck(env);
+        Type elsT = els.typecheck(env);
+
+        // Make sure our condition expression can result in a boolean.
+        if (condT != BoolType.singleton && condT != AnyType.singleton) {
+            throw new StratagemTypecheckException("If-expression expected boolean in condition, got: " + condT);
         }
 
         // Cast insertion rule (CIf1).
         if (condT == AnyType.singleton) {
             // Wrap the condition expression in a cast to ensure it is a boolean at runtime.
-            cond = new CastExpr(BoolType.singleton, cond);
+            cond = new CastExpr(BoolType.singleton, cond, AnyType.singleton);
+        }
+
+        // A generic branch is instantiated for the other, as for a let binding.
+        Type genericThnT = thnT;
+        Type genericElsT = elsT;
+        thnT = Instantiation.instantiate(thnT, elsT, env);
+        elsT = Instantiation.instantiate(elsT, thnT, env);
+        thn = Instantiation.cast(thn, genericThnT, thnT);
+        els = Instantiation.cast(els, genericElsT, elsT);
+
+        // Find the lowest type that is a supertype of both the then-branch and the else-branch.
+        Type supertype = thnT.findSupertypeWith(elsT);
+
+        // Since it's a supertype of both, it is consistent with the then-branch and the else-branch, unless one
+        // branch is a function taking a type variable where the other takes ?. Nothing but values of the type
+        // variable can be passed to the first.
+        if (!supertype.consistentWith(thnT) || !supertype.consistentWith(elsT)) {
+            throw new StratagemTypecheckException("Inconsistent branch types: " + thnT + " and " + elsT);
+        }
+
+        // Cast insertion rule (CIf2).
+        if (thnT != supertype) {
+            // Cast the left branch to the supertype of the left and right.
+            thn = new CastExpr(supertype, thn, thnT);
+        }
+
+        // Cast insertion rule (CIf3).
+        if (elsT != supertype) {
+            // Cast the right branch to the supertype of the left and right.
+            els = new CastExpr(supertype, els, elsT);
+        }
+
+        // Typing rule (TIf).
+        return supertype;
+    }
+
+    Expression getCondition() {
+        return cond;
+    }
+
+    Expression getThen() {
+        return thn;
+    }
+
+    Expression getElse() {
+        return els;
+    }
+
+    public Expression resolve(Scope scope) {
+        cond = cond.resolve(scope);
+        thn = thn.resolve(scope);
+        els = els.resolve(scope);
+
+        // The condition is checked to be a boolean below anyway, so a cast inserted by rule (CIf1)
+        // only repeats the check. Speculate on a boolean directly and report a failure as a cast error.
+        if (cond instanceof CastExpr && ((CastExpr) cond).getTarget() == BoolType.singleton) {
+            cond = ((CastExpr) cond).getBody();
+            condIsCast = true;
+        }
+        return this;
+    }
+
+    public void mapSubexpressions(UnaryOperator<Expression> f) {
+        cond = f.apply(cond);
+        thn = f.apply(thn);
+        els = f.apply(els);
+    }
+
+    public void markTailPosition() {
+        thn.markTailPosition();
+        els.markTailPosition();
+    }
+
+    public Value evaluate(ValueEnvironment env) {
+        if (test(env)) {
+            return thn.evaluate(env);
+        } else {
+            return els.evaluate(env);
+        }
+    }
+
+    public int evaluateInt(ValueEnvironment env) {
+        return test(env) ? thn.evaluateInt(env) : els.evaluateInt(env);
+    }
+
+    public boolean evaluateBoolean(ValueEnvironment env) {
+        return test(env) ? thn.evaluateBoolean(env) : els.evaluateBoolean(env);
+    }
+
+    private boolean test(ValueEnvironment env) {
+        if (!condIsCast) {
+            return cond.evaluateBoolean(env);
+        }
+        Value v = cond.evaluate(env);
+        if (!(v instanceof BoolVal)) {
+            throw new StratagemCastException("Cannot cast " + v + " to " + BoolType.singleton);
+        }
+        return ((BoolVal) v).toBoolean();
+    }
+
+    public void emitBytecode(JitCompiler jit) {
+        Label elseLabel = new Label();
+        Label endLabel = new Label();
+        emitTest(jit, elseLabel);
+        thn.emitBytecode(jit);
+        jit.getCode().jump(endLabel);
+        jit.getCode().mark(elseLabel);
+        els.emitBytecode(jit);
+        jit.getCode().mark(endLabel);
+    }
+
+    public void emitIntBytecode(JitCompiler jit) {
+        Label elseLabel = new Label();
+        Label endLabel = new Label();
+        emitTest(jit, elseLabel);
+        thn.emitIntBytecode(jit);
+        jit.getCode().jump(endLabel);
+        jit.getCode().mark(elseLabel);
+        els.emitIntBytecode(jit);
+        jit.getCode().mark(endLabel);
+    }
+
+    public void emitConditionBytecode(JitCompiler jit, Label falseTarget) {
+        Label elseLabel = new Label();
+        Label endLabel = new Label();
+        emitTest(jit, elseLabel);
+        thn.emitConditionBytecode(jit, falseTarget);
+        jit.getCode().jump(endLabel);
+        jit.getCode().mark(elseLabel);
+        els.emitConditionBytecode(jit, falseTarget);
+        jit.getCode().mark(endLabel);
+    }
+
+    private void emitTest(JitCompiler jit, Label elseLabel) {
+        if (condIsCast) {
+            cond.emitBytecode(jit);
+            jit.emitBranchIfFalse(elseLabel, true);
+        } else {
+            cond.emitConditionBytecode(jit, elseLabel);
+        }
+    }
+
+    public void emitInstructions(VmCompiler vm) {
+        vm.emitIf(cond, condIsCast, thn, els);
+    }
+}
+
+/**
+ * Binary operators whose operands have been proven to be ints by typecheck().
+ * Each operator gets its own node, so evaluation does not dispatch on the operator
+ * or check the types of the operands, and comparisons return the shared BoolVals.
+ */
+abstract class IntBinOpExpr implements Expression {
+    protected Expression e1;
+    protected Expression e2;
+    private Type resultType;
+    private int opcode;
+
+    /**
+     * The opcode is the JVM instruction for the operator: an arithmetic instruction,
+     * or for comparisons the branch taken when the comparison holds.
+     */
+    IntBinOpExpr(Expression e1, Expression e2, Type resultType, int opcode) {
+        this.e1 = e1;
+        this.e2 = e2;
+        this.resultType = resultType;
+        this.opcode = opcode;
+    }
+
+    static IntBinOpExpr create(Op op, Expression e1, Expression e2) {
+        switch (op) {
+        case ADD:
+            return new IntAddExpr(e1, e2);
+        case SUBTRACT:
+            return new IntSubtractExpr(e1, e2);
+        case MULTIPLY:
+            return new IntMultiplyExpr(e1, e2);
+        case DIVIDE:
+            return new IntDivideExpr(e1, e2);
+        case MOD:
+            return new IntModExpr(e1, e2);
+        case GT:
+            return new IntGtExpr(e1, e2);
+        case GE:
+            return new IntGeExpr(e1, e2);
+        case LT:
+            return new IntLtExpr(e1, e2);
+        case LE:
+            return new IntLeExpr(e1, e2);
+        case EQ:
+            return new IntEqExpr(e1, e2);
+        case NE:
+            return new IntNeExpr(e1, e2);
+        }
+        throw new StratagemRuntimeException("Unrecognized operator: " + op);
+    }
+
+    public Type typecheck(TypeEnvironment env) {
+        e1.typecheck(env);
+        e2.typecheck(env);
+        return resultType;
+    }
+
+    public Expression resolve(Scope scope) {
+        e1 = e1.resolve(scope);
+        e2 = e2.resolve(scope);
+        return this;
+    }
+
+    public void mapSubexpressions(UnaryOperator<Expression> f) {
+        e1 = f.apply(e1);
+        e2 = f.apply(e2);
+    }
+
+    public Value evaluate(ValueEnvironment env) {
+        return apply(e1.evaluateInt(env), e2.evaluateInt(env));
+    }
+
+    public int evaluateInt(ValueEnvironment env) {
+        if (resultType != IntType.singleton) {
+            return Expression.super.evaluateInt(env);
+        }
+        return applyInt(e1.evaluateInt(env), e2.evaluateInt(env));
+    }
+
+    public boolean evaluateBoolean(ValueEnvironment env) {
+        if (resultType != BoolType.singleton) {
+            return Expression.super.evaluateBoolean(env);
+        }
+        return test(e1.evaluateInt(env), e2.evaluateInt(env));
+    }
+
+    /**
+     * Applies the operator to int operands.
+     */
+    Value apply(int i, int j) {
+        if (resultType == IntType.singleton) {
+            return IntVal.of(applyInt(i, j));
+        }
+        return BoolVal.of(test(i, j));
+    }
+
+    /**
+     * Applies an arithmetic operator to int operands.
+     */
+    int applyInt(int i, int j) {
+        throw new StratagemRuntimeException("Not an arithmetic operator: " + getClass().getSimpleName());
+    }
+
+    /**
+     * Applies a comparison to int operands.
+     */
+    boolean test(int i, int j) {
+        throw new StratagemRuntimeException("Not a comparison: " + getClass().getSimpleName());
+    }
+
+    public void emitBytecode(JitCompiler jit) {
+        if (resultType == IntType.singleton) {
+            emitIntBytecode(jit);
+            jit.emitBoxInt();
+            return;
+        }
+
+        CodeBuilder code = jit.getCode();
+        Label falseLabel = new Label();
+        Label endLabel = new Label();
+        emitConditionBytecode(jit, falseLabel);
+        code.iconst(1);
+        code.jump(endLabel);
+        code.mark(falseLabel);
+        code.iconst(0);
+        code.mark(endLabel);
+        jit.emitBoxBoolean();
+    }
+
+    public void emitIntBytecode(JitCompiler jit) {
+        if (resultType != IntType.singleton) {
+            Expression.super.emitIntBytecode(jit);
+            return;
+        }
+        e1.emitIntBytecode(jit);
+        e2.emitIntBytecode(jit);
+        jit.getCode().insn(opcode);
+    }
+
+    public void emitConditionBytecode(JitCompiler jit, Label falseTarget) {
+        if (resultType != BoolType.singleton) {
+            Expression.super.emitConditionBytecode(jit, falseTarget);
+            return;
+        }
+        e1.emitIntBytecode(jit);
+        e2.emitIntBytecode(jit);
+        jit.getCode().jump(CodeBuilder.negate(opcode), falseTarget);
+    }
+
+    public void emitInstructions(VmCompiler vm) {
+        vm.emitIntOperation(opcode, e1, e2);
+    }
+
+    public int emitConditionInstructions(VmCompiler vm) {
+        if (resultType != BoolType.singleton) {
+            return Expression.super.emitConditionInstructions(vm);
+        }
+        return vm.emitIntComparisonJump(opcode, e1, e2);
+    }
+}
+
+class IntAddExpr extends IntBinOpExpr {
+    IntAddExpr(Expression e1, Expression e2) {
+        super(e1, e2, IntType.singleton, CodeBuilder.IADD);
+    }
+
+    int applyInt(int i, int j) {
+        return i + j;
+    }
+}
+
+class IntSubtractExpr extends IntBinOpExpr {
+    IntSubtractExpr(Expression e1, Expression e2) {
+        super(e1, e2, IntType.singleton, CodeBuilder.ISUB);
+    }
+
+    int applyInt(int i, int j) {
+        return i - j;
+    }
+}
+
+class IntMultiplyExpr extends IntBinOpExpr {
+    IntMultiplyExpr(Expression e1, Expression e2) {
+        super(e1, e2, IntType.singleton, CodeBuilder.IMUL);
+    }
+
+    int applyInt(int i, int j) {
+        return i * j;
+    }
+}
+
+class IntDivideExpr extends IntBinOpExpr {
+    IntDivideExpr(Expression e1, Expression e2) {
+        super(e1, e2, IntType.singleton, CodeBuilder.IDIV);
+    }
+
+    int applyInt(int i, int j) {
+        return i / j;
+    }
+}
+
+class IntModExpr extends IntBinOpExpr {
+    IntModExpr(Expression e1, Expression e2) {
+        super(e1, e2, IntType.singleton, CodeBuilder.IREM);
+    }
+
+    int applyInt(int i, int j) {
+        return i % j;
+    }
+}
+
+class IntGtExpr extends IntBinOpExpr {
+    IntGtExpr(Expression e1, Expression e2) {
+        super(e1, e2, BoolType.singleton, CodeBuilder.IF_ICMPGT);
+    }
+
+    boolean test(int i, int j) {
+        return i > j;
+    }
+}
+
+class IntGeExpr extends IntBinOpExpr {
+    IntGeExpr(Expression e1, Expression e2) {
+        super(e1, e2, BoolType.singleton, CodeBuilder.IF_ICMPGE);
+    }
+
+    boolean test(int i, int j) {
+        return i >= j;
+    }
+}
+
+class IntLtExpr extends IntBinOpExpr {
+    IntLtExpr(Expression e1, Expression e2) {
+        super(e1, e2, BoolType.singleton, CodeBuilder.IF_ICMPLT);
+    }
+
+    boolean test(int i, int j) {
+        return i < j;
+    }
+}
+
+class IntLeExpr extends IntBinOpExpr {
+    IntLeExpr(Expression e1, Expression e2) {
+        super(e1, e2, BoolType.singleton, CodeBuilder.IF_ICMPLE);
+    }
+
+    boolean test(int i, int j) {
+        return i <= j;
+    }
+}
+
+class IntEqExpr extends IntBinOpExpr {
+    IntEqExpr(Expression e1, Expression e2) {
+        super(e1, e2, BoolType.singleton, CodeBuilder.IF_ICMPEQ);
+    }
+
+    boolean test(int i, int j) {
+        return i == j;
+    }
+}
+
+class IntNeExpr extends IntBinOpExpr {
+    IntNeExpr(Expression e1, Expression e2) {
+        super(e1, e2, BoolType.singleton, CodeBuilder.IF_ICMPNE);
+    }
+
+    boolean test(int i, int j) {
+        return i != j;
+    }
+}
+
+/**
+ * Let bindings.
+ * The variable gets a slot in the frame of the enclosing function, so binding it does not
+ * create a closure or a frame of its own. Without a declared or inferred type, the variable
+ * has type ?.
+ */
+class LetExpr implements Expression {
+    private String varName;
+    private Type varType;
+    private Expression valueExpr;
+    private Expression body;
+    private int slot = -1;
+
+    LetExpr(String varName, Type varType, Expression valueExpr, Expression body) {
+        this.varName = varName;
+        this.varType = varType;
+        this.valueExpr = valueExpr;
+        this.body = body;
+    }
+
+    public Type typecheck(TypeEnvironment env) {
+        Type valueType = valueExpr.typecheck(env);
+        if (varType == null) {
+            varType = AnyType.singleton;
+        }
+
+        // A generic value is instantiated for the variable, which may be generic itself.
+        Type genericValueType = valueType;
+        valueType = Instantiation.instantiate(valueType, varType, env);
+        valueExpr = Instantiation.cast(valueExpr, genericValueType, valueType);
+
+        // Cast insertion rule (CLet).
+        if (varType != valueType) {
+            if (!varType.consistentWith(valueType)) {
+                throw new StratagemTypecheckException(
+                        "Inconsistent let type: expected " + varType + ", got " + valueType);
+            }
+
+            // Wrap the value in a cast to ensure it can be bound to the variable at runtime.
+            valueExpr = new CastExpr(varType, valueExpr, valueType);
+        }
+
+        TypeEnvironment innerEnv = new TypeEnvironment(env);
+        innerEnv.createVar(varName, varType);
+
+        // Typing rule (TLet).
+        return body.typecheck(innerEnv);
+    }
+
+    String getVarName() {
+        return varName;
+    }
+
+    Type getVarType() {
+        return varType;
+    }
+
+    void setVarType(Type varType) {
+        this.varType = varType;
+    }
+
+    Expression getValueExpr() {
+        return valueExpr;
+    }
+
+    Expression getBody() {
+        return body;
+    }
+
+    public Expression resolve(Scope scope) {
+        valueExpr = valueExpr.resolve(scope);
+        slot = scope.declareVar(varName);
+        body = body.resolve(scope);
+        scope.endVar(slot);
+        return this;
+    }
+
+    public void mapSubexpressions(UnaryOperator<Expression> f) {
+        valueExpr = f.apply(valueExpr);
+        body = f.apply(body);
+    }
+
+    public void markTailPosition() {
+        body.markTailPosition();
+    }
+
+    public Value evaluate(ValueEnvironment env) {
+        Value value = valueExpr.evaluate(env);
+
+        // Unresolved bindings look their variable up by name, so they need an environment of their own.
+        if (slot < 0) {
+            ValueEnvironment innerEnv = new ValueEnvironment(env);
+            innerEnv.createVar(varName, value);
+            return body.evaluate(innerEnv);
         }
 
-        // Find the lowest type that is a supertype of both the then-branch and the else-branch.
-        Type supertype = thnT.findSupertypeWith(elsT);
+        env.setSlot(slot, value);
+        return body.evaluate(env);
+    }
 
-        // Since it's a supertype of both, it should be consistent with the then-branch and the else-branch.
-        assert(thnT.consistentWith(supertype));
-        assert(elsT.consistentWith(supertype));
+    public int evaluateInt(ValueEnvironment env) {
+        if (slot < 0) {
+            return Expression.super.evaluateInt(env);
+        }
+        env.setSlot(slot, valueExpr.evaluate(env));
+        return body.evaluateInt(env);
+    }
 
-        // Cast insertion rule (CIf2).
-        if (!thnT.equals(supertype)) {
-            // Cast the left branch to the supertype of the left and right.
-            thn = new CastExpr(supertype, thn);
+    public boolean evaluateBoolean(ValueEnvironment env) {
+        if (slot < 0) {
+            return Expression.super.evaluateBoolean(env);
         }
+        env.setSlot(slot, valueExpr.evaluate(env));
+        return body.evaluateBoolean(env);
+    }
 
-        // Cast insertion rule (CIf3).
-        if (!elsT.equals(supertype)) {
-            // Cast the right branch to the supertype of the left and right.
-            els = new CastExpr(supertype, els);
+    public void emitBytecode(JitCompiler jit) {
+        jit.emitSetSlot(slot, valueExpr);
+        body.emitBytecode(jit);
+    }
+
+    public void emitIntBytecode(JitCompiler jit) {
+        jit.emitSetSlot(slot, valueExpr);
+        body.emitIntBytecode(jit);
+    }
+
+    public void emitConditionBytecode(JitCompiler jit, Label falseTarget) {
+        jit.emitSetSlot(slot, valueExpr);
+        body.emitConditionBytecode(jit, falseTarget);
+    }
+
+    public void emitInstructions(VmCompiler vm) {
+        valueExpr.emitInstructions(vm);
+        vm.emitStoreLocal(slot);
+        body.emitInstructions(vm);
+    }
+
+    public int emitConditionInstructions(VmCompiler vm) {
+        valueExpr.emitInstructions(vm);
+        vm.emitStoreLocal(slot);
+        return body.emitConditionInstructions(vm);
+    }
+}
+
+/**
+ * Recursive let bindings, which bind a function in its own body.
+ * The function captures its variable like any other, except that the closure is created
+ * before the variable has a value, so the captured value is patched in afterwards.
+ * Recursive calls then go straight to the closure instead of through a fixpoint combinator.
+ */
+class LetRecExpr implements Expression {
+    private String varName;
+    private Type varType;
+    private Expression valueExpr;
+    private Expression body;
+    private int slot = -1;
+    private int selfIndex = -1;
+
+    /**
+     * Without a declared type, the function sees itself as returning ?, while the body
+     * of the binding sees the type that the function was found to have.
+     */
+    LetRecExpr(String varName, Type varType, Expression valueExpr, Expression body) {
+        this.varName = varName;
+        this.varType = varType;
+        this.valueExpr = valueExpr;
+        this.body = body;
+    }
+
+    public Type typecheck(TypeEnvironment env) {
+        if (!(valueExpr instanceof FunctionDeclExpr)) {
+            throw new StratagemTypecheckException("let rec must bind a function: " + varName);
         }
+        FunctionDeclExpr function = (FunctionDeclExpr) valueExpr;
+        function.defaultParamTypes();
+
+        Type selfType = varType != null ? varType : ClosureType.of(function.getParamTypes(), AnyType.singleton);
+        TypeEnvironment functionEnv = new TypeEnvironment(env);
+        functionEnv.createVar(varName, selfType);
+        Type valueType = valueExpr.typecheck(functionEnv);
+
+        // Cast insertion rule (CLet), as for other let bindings.
+        Type boundType = varType != null ? varType : valueType;
+        Type genericValueType = valueType;
+        valueType = Instantiation.instantiate(valueType, boundType, env);
+        valueExpr = Instantiation.cast(valueExpr, genericValueType, valueType);
+        if (boundType != valueType) {
+            if (!boundType.consistentWith(valueType)) {
+                throw new StratagemTypecheckException(
+                        "Inconsistent let type: expected " + boundType + ", got " + valueType);
+            }
 
-        // Typing rule (TIf).
-        return supertype;
+            // Wrap the value in a cast to ensure it can be bound to the variable at runtime.
+            valueExpr = new CastExpr(boundType, valueExpr, valueType);
+        }
+
+        TypeEnvironment innerEnv = new TypeEnvironment(env);
+        innerEnv.createVar(varName, boundType);
+
+        // Typing rule (TLetRec).
+        return body.typecheck(innerEnv);
+    }
+
+    String getVarName() {
+        return varName;
+    }
+
+    Type getVarType() {
+        return varType;
+    }
+
+    void setVarType(Type varType) {
+        this.varType = varType;
+    }
+
+    Expression getValueExpr() {
+        return valueExpr;
+    }
+
+    Expression getBody() {
+        return body;
+    }
+
+    public Expression resolve(Scope scope) {
+        // The variable is in scope in the function, so that the function captures it.
+        slot = scope.declareVar(varName);
+        valueExpr = valueExpr.resolve(scope);
+        body = body.resolve(scope);
+        scope.endVar(slot);
+
+        Expression function = valueExpr;
+        while (function instanceof CastExpr) {
+            function = ((CastExpr) function).getBody();
+        }
+        Expression[] captureSources = ((FunctionDeclExpr) function).getCaptureSources();
+        for (int i = 0; i < captureSources.length; i++) {
+            if (captureSources[i] instanceof LocalVarExpr && ((LocalVarExpr) captureSources[i]).getSlot() == slot) {
+                selfIndex = i;
+            }
+        }
+        return this;
+    }
+
+    public void mapSubexpressions(UnaryOperator<Expression> f) {
+        valueExpr = f.apply(valueExpr);
+        body = f.apply(body);
+    }
+
+    public void markTailPosition() {
+        body.markTailPosition();
     }
 
     public Value evaluate(ValueEnvironment env) {
-        Value v = cond.evaluate(env);
+        // Unresolved functions hold on to the environment they were created in,
+        // so they see the variable once it is declared there.
+        if (slot < 0) {
+            ValueEnvironment innerEnv = new ValueEnvironment(env);
+            innerEnv.createVar(varName, valueExpr.evaluate(innerEnv));
+            return body.evaluate(innerEnv);
+        }
+
+        Value value = valueExpr.evaluate(env);
+        env.setSlot(slot, value);
+        if (selfIndex >= 0) {
+            bindSelf(value, selfIndex);
+        }
+        return body.evaluate(env);
+    }
+
+    public void emitBytecode(JitCompiler jit) {
+        jit.emitSetSlot(slot, valueExpr);
+        if (selfIndex >= 0) {
+            jit.emitBindSelf(slot, selfIndex);
+        }
+        body.emitBytecode(jit);
+    }
+
+    public void emitInstructions(VmCompiler vm) {
+        valueExpr.emitInstructions(vm);
+        vm.emitStoreLocal(slot);
+        if (selfIndex >= 0) {
+            vm.emitBindSelf(slot, selfIndex);
+        }
+        body.emitInstructions(vm);
+    }
+
+    /**
+     * Patches a recursive closure, or a proxy for one, to see itself among its captured values.
+     */
+    static void bindSelf(Value closure, int index) {
+        ((ClosureVal) closure).getCaptured()[index] = closure;
+    }
+}
+
+/**
+ * A variable bound in the current frame.
+ */
+class LocalVarExpr implements Expression {
+    private String varName;
+    private int slot;
+
+    LocalVarExpr(String varName, int slot) {
+        this.varName = varName;
+        this.slot = slot;
+    }
+
+    public Type typecheck(TypeEnvironment env) {
+        return env.resolveVar(varName);
+    }
+
+    public Expression resolve(Scope scope) {
+        return this;
+    }
+
+    public Value evaluate(ValueEnvironment env) {
+        return env.getSlot(slot);
+    }
+
+    public int evaluateInt(ValueEnvironment env) {
+        Value v = env.getSlot(slot);
+        if (!(v instanceof IntVal)) {
+            throw new StratagemCastException("Expected int, but got " + v);
+        }
+        return ((IntVal) v).toInt();
+    }
+
+    public boolean evaluateBoolean(ValueEnvironment env) {
+        Value v = env.getSlot(slot);
         if (!(v instanceof BoolVal)) {
             throw new StratagemRuntimeException("Expected boolean, but got " + v);
         }
-        BoolVal bv = (BoolVal) v;
-        if (bv.toBoolean()) {
-            return thn.evaluate(env);
+        return ((BoolVal) v).toBoolean();
+    }
+
+    public void emitBytecode(JitCompiler jit) {
+        jit.emitGetSlot(slot);
+    }
+
+    public void emitInstructions(VmCompiler vm) {
+        vm.emitLoadLocal(slot);
+    }
+
+    int getSlot() {
+        return slot;
+    }
+}
+
+/**
+ * Writes a new value to a let-bound variable, and evaluates to unit.
+ * The language has no such assignment: the EscapeAnalyzer introduces it when it replaces
+ * a reference that never leaves its function with the variable the reference was bound to.
+ */
+class LocalAssignExpr implements Expression {
+    private String varName;
+    private Expression valueExpr;
+    private int slot = -1;
+
+    LocalAssignExpr(String varName, Expression valueExpr) {
+        this.varName = varName;
+        this.valueExpr = valueExpr;
+    }
+
+    public Type typecheck(TypeEnvironment env) {
+        valueExpr.typecheck(env);
+        return UnitType.singleton;
+    }
+
+    public Expression resolve(Scope scope) {
+        valueExpr = valueExpr.resolve(scope);
+        Expression var = scope.resolveVar(varName);
+        // The EscapeAnalyzer keeps any reference that a function refers to, so the variable is never captured.
+        if (!(var instanceof LocalVarExpr)) {
+            throw new IllegalStateException("Escape analysis replaced a reference captured by a function: " + varName);
+        }
+        slot = ((LocalVarExpr) var).getSlot();
+        return this;
+    }
+
+    public void mapSubexpressions(UnaryOperator<Expression> f) {
+        valueExpr = f.apply(valueExpr);
+    }
+
+    public Value evaluate(ValueEnvironment env) {
+        Value value = valueExpr.evaluate(env);
+        if (slot < 0) {
+            env.updateVar(varName, value);
         } else {
-            return els.evaluate(env);
+            env.setSlot(slot, value);
         }
+        return UnitVal.singleton;
+    }
+
+    public void emitBytecode(JitCompiler jit) {
+        jit.emitSetSlot(slot, valueExpr);
+        jit.emitConstant(UnitVal.singleton);
+    }
+
+    public void emitInstructions(VmCompiler vm) {
+        valueExpr.emitInstructions(vm);
+        vm.emitStoreLocal(slot);
+        vm.emitConstant(UnitVal.singleton);
     }
 }
 
@@ -401,12 +2049,26 @@ class PrintExpr implements Expression {
         return UnitType.singleton;
     }
 
+    public Expression resolve(Scope scope) {
+        arg = arg.resolve(scope);
+        return this;
+    }
+
+    public void mapSubexpressions(UnaryOperator<Expression> f) {
+        arg = f.apply(arg);
+    }
+
     public Value evaluate(ValueEnvironment env) {
         Value value = arg.evaluate(env);
         print(value);
         return UnitVal.singleton;
     }
 
+    public void emitInstructions(VmCompiler vm) {
+        arg.emitInstructions(vm);
+        vm.emitUnary(VirtualMachine.PRINT);
+    }
+
     private void print(Value value) {
         System.out.println(value.toString());
     }
@@ -414,6 +2076,7 @@ class PrintExpr implements Expression {
 
 class RefExpr implements Expression {
     private Expression valueExpr;
+    private Type cellType;
 
     RefExpr(Expression valueExpr) {
         this.valueExpr = valueExpr;
@@ -421,12 +2084,57 @@ class RefExpr implements Expression {
 
     public Type typecheck(TypeEnvironment env) {
         Type valueType = valueExpr.typecheck(env);
-        return new RefType(valueType);
+
+        // The cell holds values of the type its contents have at runtime.
+        cellType = TypeTable.erase(valueType);
+        return RefType.of(valueType);
+    }
+
+    Expression getValueExpr() {
+        return valueExpr;
+    }
+
+    Type getCellType() {
+        return cellType;
+    }
+
+    public Expression resolve(Scope scope) {
+        valueExpr = valueExpr.resolve(scope);
+        return this;
+    }
+
+    public void mapSubexpressions(UnaryOperator<Expression> f) {
+        valueExpr = f.apply(valueExpr);
     }
 
     public Value evaluate(ValueEnvironment env) {
+        if (cellType == IntType.singleton) {
+            return new IntRefVal(valueExpr.evaluateInt(env));
+        }
+        if (cellType == BoolType.singleton) {
+            return new BoolRefVal(valueExpr.evaluateBoolean(env));
+        }
         Value value = valueExpr.evaluate(env);
-        return new RefVal(value);
+        return newRef(value);
+    }
+
+    /**
+     * Creates a reference with the cell type found by the typechecker.
+     * Cells of type Int and Bool hold their contents unboxed.
+     */
+    RefVal newRef(Value value) {
+        if (cellType == IntType.singleton) {
+            return new IntRefVal(((IntVal) value).toInt());
+        }
+        if (cellType == BoolType.singleton) {
+            return new BoolRefVal(((BoolVal) value).toBoolean());
+        }
+        return cellType == null ? new RefVal(value) : new RefVal(value, cellType);
+    }
+
+    public void emitInstructions(VmCompiler vm) {
+        valueExpr.emitInstructions(vm);
+        vm.emitUnary(VirtualMachine.REF, this);
     }
 }
 
@@ -454,6 +2162,29 @@ class SeqExpr implements Expression {
         return type;
     }
 
+    Expression[] getExprs() {
+        return exprs;
+    }
+
+    public Expression resolve(Scope scope) {
+        for (int i = 0; i < exprs.length; i++) {
+            exprs[i] = exprs[i].resolve(scope);
+        }
+        return this;
+    }
+
+    public void mapSubexpressions(UnaryOperator<Expression> f) {
+        for (int i = 0; i < exprs.length; i++) {
+            exprs[i] = f.apply(exprs[i]);
+        }
+    }
+
+    public void markTailPosition() {
+        if (exprs.length > 0) {
+            exprs[exprs.length - 1].markTailPosition();
+        }
+    }
+
     public Value evaluate(ValueEnvironment env) {
         Value value = UnitVal.singleton;
         for (Expression e : exprs) {
@@ -461,6 +2192,22 @@ class SeqExpr implements Expression {
         }
         return value;
     }
+
+    public void emitBytecode(JitCompiler jit) {
+        if (exprs.length == 0) {
+            jit.emitConstant(UnitVal.singleton);
+            return;
+        }
+        for (int i = 0; i < exprs.length - 1; i++) {
+            exprs[i].emitBytecode(jit);
+            jit.getCode().pop();
+        }
+        exprs[exprs.length - 1].emitBytecode(jit);
+    }
+
+    public void emitInstructions(VmCompiler vm) {
+        vm.emitSeq(exprs);
+    }
 }
 
 /**
@@ -481,9 +2228,40 @@ class ValueExpr implements Expression {
         return val.getType();
     }
 
+    public Expression resolve(Scope scope) {
+        return this;
+    }
+
     public Value evaluate(ValueEnvironment env) {
         return this.val;
     }
+
+    public int evaluateInt(ValueEnvironment env) {
+        if (!(val instanceof IntVal)) {
+            return Expression.super.evaluateInt(env);
+        }
+        return ((IntVal) val).toInt();
+    }
+
+    public void emitBytecode(JitCompiler jit) {
+        jit.emitConstant(val);
+    }
+
+    public void emitIntBytecode(JitCompiler jit) {
+        if (!(val instanceof IntVal)) {
+            Expression.super.emitIntBytecode(jit);
+            return;
+        }
+        jit.getCode().iconst(((IntVal) val).toInt());
+    }
+
+    public void emitInstructions(VmCompiler vm) {
+        vm.emitConstant(val);
+    }
+
+    Value getValue() {
+        return val;
+    }
 }
 
 /**
@@ -500,7 +2278,111 @@ class VarExpr implements Expression {
         return env.resolveVar(varName);
     }
 
+    String getVarName() {
+        return varName;
+    }
+
+    public Expression resolve(Scope scope) {
+        return scope.resolveVar(varName);
+    }
+
     public Value evaluate(ValueEnvironment env) {
         return env.resolveVar(varName);
     }
 }
+
+/**
+ * While loops. The body is evaluated as long as the condition holds, and the loop returns unit.
+ * Iterations run in the enclosing frame, so a loop allocates nothing beyond what its body does.
+ */
+class WhileExpr implements Expression {
+    private Expression cond;
+    private Expression body;
+    private boolean condIsCast;
+
+    WhileExpr(Expression cond, Expression body) {
+        this.cond = cond;
+        this.body = body;
+    }
+
+    public Type typecheck(TypeEnvironment env) {
+        Type condT = cond.typecheck(env);
+        body.typecheck(env);
+
+        // Make sure our condition expression can result in a boolean.
+        if (condT != BoolType.singleton && condT != AnyType.singleton) {
+            throw new StratagemTypecheckException("While-expression expected boolean in condition, got: " + condT);
+        }
+
+        // Cast insertion rule (CIf1), as for if-expressions.
+        if (condT == AnyType.singleton) {
+            cond = new CastExpr(BoolType.singleton, cond, AnyType.singleton);
+        }
+
+        return UnitType.singleton;
+    }
+
+    Expression getCondition() {
+        return cond;
+    }
+
+    Expression getBody() {
+        return body;
+    }
+
+    public Expression resolve(Scope scope) {
+        cond = cond.resolve(scope);
+        body = body.resolve(scope);
+
+        // As in IfExpr, the check for a boolean below stands in for a cast inserted by rule (CIf1).
+        if (cond instanceof CastExpr && ((CastExpr) cond).getTarget() == BoolType.singleton) {
+            cond = ((CastExpr) cond).getBody();
+            condIsCast = true;
+        }
+        return this;
+    }
+
+    public void mapSubexpressions(UnaryOperator<Expression> f) {
+        cond = f.apply(cond);
+        body = f.apply(body);
+    }
+
+    public Value evaluate(ValueEnvironment env) {
+        while (test(env)) {
+            body.evaluate(env);
+        }
+        return UnitVal.singleton;
+    }
+
+    private boolean test(ValueEnvironment env) {
+        if (!condIsCast) {
+            return cond.evaluateBoolean(env);
+        }
+        Value v = cond.evaluate(env);
+        if (!(v instanceof BoolVal)) {
+            throw new StratagemCastException("Cannot cast " + v + " to " + BoolType.singleton);
+        }
+        return ((BoolVal) v).toBoolean();
+    }
+
+    public void emitBytecode(JitCompiler jit) {
+        Label topLabel = new Label();
+        Label endLabel = new Label();
+        jit.getCode().mark(topLabel);
+        if (condIsCast) {
+            cond.emitBytecode(jit);
+            jit.emitBranchIfFalse(endLabel, true);
+        } else {
+            cond.emitConditionBytecode(jit, endLabel);
+        }
+        body.emitBytecode(jit);
+        jit.getCode().pop();
+        jit.getCode().jump(topLabel);
+        jit.getCode().mark(endLabel);
+        jit.emitConstant(UnitVal.singleton);
+    }
+
+    public void emitInstructions(VmCompiler vm) {
+        vm.emitWhile(cond, condIsCast, body);
+    }
+}
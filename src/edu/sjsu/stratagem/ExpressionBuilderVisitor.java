@@ -69,7 +69,7 @@ public class ExpressionBuilderVisitor extends StratagemBaseVisitor<Expression>{
     @Override
     public Expression visitBool(StratagemParser.BoolContext ctx) {
         boolean val = Boolean.valueOf(ctx.LIT_BOOL().getText());
-        return new ValueExpr(new BoolVal(val));
+        return new ValueExpr(BoolVal.of(val));
     }
 
     @Override
@@ -81,20 +81,29 @@ public class ExpressionBuilderVisitor extends StratagemBaseVisitor<Expression>{
     @Override
     public Expression visitFunctionApp(StratagemParser.FunctionAppContext ctx) {
         Expression f = visit(ctx.expr());
-        Expression arg = visit(ctx.args().getChild(1));
-        return new FunctionAppExpr(f, arg);
+        List<StratagemParser.ExprContext> argContexts = ctx.args().expr();
+        Expression[] args = new Expression[argContexts.size()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = visit(argContexts.get(i));
+        }
+        return new FunctionAppExpr(f, args);
     }
 
     @Override
     public Expression visitFunctionDecl(StratagemParser.FunctionDeclContext ctx) {
-        StratagemParser.TypeContext paramTypeContext = ctx.params().type();
+        List<StratagemParser.ParamContext> paramContexts = ctx.params().param();
+        String[] paramNames = new String[paramContexts.size()];
+        Type[] paramTypes = new Type[paramContexts.size()];
+        for (int i = 0; i < paramNames.length; i++) {
+            StratagemParser.TypeContext paramTypeContext = paramContexts.get(i).type();
 
-        String paramName = ctx.params().ID().getText();
-        Type paramType = paramTypeContext == null ? AnyType.singleton
-                                                  : parseType(paramTypeContext);
+            paramNames[i] = paramContexts.get(i).ID().getText();
+            paramTypes[i] = paramTypeContext == null ? null
+                                                     : parseType(paramTypeContext);
+        }
         Expression body = visit(ctx.seq());
 
-        return new FunctionDeclExpr(paramName, paramType, body);
+        return new FunctionDeclExpr(paramNames, paramTypes, body);
     }
 
     @Override
@@ -114,7 +123,7 @@ public class ExpressionBuilderVisitor extends StratagemBaseVisitor<Expression>{
     @Override
     public Expression visitInt(StratagemParser.IntContext ctx) {
         int val = Integer.valueOf(ctx.LIT_INT().getText());
-        return new ValueExpr(new IntVal(val));
+        return new ValueExpr(IntVal.of(val));
     }
 
     @Override
@@ -124,11 +133,23 @@ public class ExpressionBuilderVisitor extends StratagemBaseVisitor<Expression>{
         String id = ctx.ID().getText();
         Expression value = visit(ctx.expr(0));
         Expression body = visit(ctx.expr(1));
-        Type paramType = typeContext == null ? AnyType.singleton
-                                             : parseType(typeContext);
+        Type varType = typeContext == null ? null
+                                           : parseType(typeContext);
 
-        FunctionDeclExpr implicitDecl = new FunctionDeclExpr(id, paramType, body);
-        return new FunctionAppExpr(implicitDecl, value);
+        return new LetExpr(id, varType, value, body);
+    }
+
+    @Override
+    public Expression visitLetRec(StratagemParser.LetRecContext ctx) {
+        StratagemParser.TypeContext typeContext = ctx.type();
+
+        String id = ctx.ID().getText();
+        Expression value = visit(ctx.expr(0));
+        Expression body = visit(ctx.expr(1));
+        Type varType = typeContext == null ? null
+                                           : parseType(typeContext);
+
+        return new LetRecExpr(id, varType, value, body);
     }
 
     @Override
@@ -138,7 +159,11 @@ public class ExpressionBuilderVisitor extends StratagemBaseVisitor<Expression>{
 
     @Override
     public Expression visitPrint(StratagemParser.PrintContext ctx) {
-        Expression arg = visit(ctx.args().getChild(1));
+        List<StratagemParser.ExprContext> argContexts = ctx.args().expr();
+        if (argContexts.size() != 1) {
+            throw new StratagemException("print takes one argument, got " + argContexts.size());
+        }
+        Expression arg = visit(argContexts.get(0));
         return new PrintExpr(arg);
     }
 
@@ -166,7 +191,7 @@ public class ExpressionBuilderVisitor extends StratagemBaseVisitor<Expression>{
     @Override
     public Expression visitString(StratagemParser.StringContext ctx) {
         String val = ctx.LIT_STRING().getText();
-        return new ValueExpr(new StringVal(val));
+        return new ValueExpr(StringVal.intern(val));
     }
 
     @Override
@@ -174,6 +199,13 @@ public class ExpressionBuilderVisitor extends StratagemBaseVisitor<Expression>{
         return new ValueExpr(UnitVal.singleton);
     }
 
+    @Override
+    public Expression visitWhile(StratagemParser.WhileContext ctx) {
+        Expression cond = visit(ctx.expr());
+        Expression body = visit(ctx.seq());
+        return new WhileExpr(cond, body);
+    }
+
     private Type parseType(StratagemParser.TypeContext ctx) {
         if (ctx.type_prim() != null) {
             return parsePrimitiveType(ctx.type_prim());
@@ -197,6 +229,8 @@ public class ExpressionBuilderVisitor extends StratagemBaseVisitor<Expression>{
             return UnitType.singleton;
         } else if (ctx.TYPE_ANY() != null) {
             return AnyType.singleton;
+        } else if (ctx.TYPE_VAR() != null) {
+            return TypeVar.of(ctx.TYPE_VAR().getText().substring(1));
         } else {
             throw new StratagemException("Unknown primitive type");
         }
@@ -204,21 +238,25 @@ public class ExpressionBuilderVisitor extends StratagemBaseVisitor<Expression>{
 
     private Type parseReferenceType(StratagemParser.Type_refContext ctx) {
         Type value = parseType(ctx.type());
-        return new RefType(value);
+        return RefType.of(value);
     }
 
     private Type parseClosureType(StratagemParser.Type_funContext ctx) {
-        StratagemParser.Type_primContext prim = ctx.type_prim();
-        Type arg;
+        // The last type is the return type. Any before it are argument types in parentheses.
+        List<StratagemParser.TypeContext> typeContexts = ctx.type();
+        Type[] args;
 
+        StratagemParser.Type_primContext prim = ctx.type_prim();
         if (prim != null) {
-            arg = parsePrimitiveType(prim);
+            args = new Type[] { parsePrimitiveType(prim) };
         } else {
-            StratagemParser.Type_funContext fun = ctx.type_fun();
-            arg = parseClosureType(fun);
+            args = new Type[typeContexts.size() - 1];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = parseType(typeContexts.get(i));
+            }
         }
 
-        Type ret = parseType(ctx.type());
-        return new ClosureType(arg, ret);
+        Type ret = parseType(typeContexts.get(typeContexts.size() - 1));
+        return ClosureType.of(args, ret);
     }
 }
@@ -0,0 +1,97 @@
+package edu.sjsu.stratagem;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Replaces applications of small function declarations, as in fn(x: Int) { x + 1 }(2),
+ * with let bindings of the parameters around the body: let x: Int = 2 in x + 1.
+ *
+ * The call then needs no closure and no frame of its own. The arguments are still evaluated
+ * once each, in order, and the casts inserted on them still apply, as does the cast of the result
+ * of a generic function to the type the call instantiated it to. A function used this way
+ * is only ever called once, so inlining it does not duplicate any code.
+ */
+class Inliner implements OptimizationPass {
+    /**
+     * The largest body, counted in expressions, that is inlined.
+     */
+    static final int SIZE_LIMIT = 32;
+
+    private int inlinedCount;
+
+    public String getName() {
+        return "inline";
+    }
+
+    public Expression optimize(Expression e) {
+        e.mapSubexpressions(this::optimize);
+        if (!(e instanceof FunctionAppExpr)) {
+            return e;
+        }
+
+        FunctionAppExpr app = (FunctionAppExpr) e;
+        if (!(app.getClosureExpr() instanceof FunctionDeclExpr)) {
+            return e;
+        }
+
+        FunctionDeclExpr function = (FunctionDeclExpr) app.getClosureExpr();
+        String[] paramNames = function.getParamNames();
+        Type[] paramTypes = function.getParamTypes();
+        Expression[] args = app.getArgs();
+        if (size(function.getBody()) > SIZE_LIMIT) {
+            return e;
+        }
+
+        // Each binding is in scope for the arguments after it, which must not see it.
+        Set<String> bound = new HashSet<>();
+        for (int i = 0; i < args.length; i++) {
+            if (refersToAny(args[i], bound)) {
+                return e;
+            }
+            bound.add(paramNames[i]);
+        }
+
+        Expression body = function.getBody();
+        for (int i = args.length - 1; i >= 0; i--) {
+            body = new LetExpr(paramNames[i], paramTypes[i], args[i], body);
+        }
+        inlinedCount++;
+        return app.castResult(body);
+    }
+
+    private static int size(Expression e) {
+        int[] size = { 1 };
+        e.mapSubexpressions(sub -> {
+            size[0] += size(sub);
+            return sub;
+        });
+        return size[0];
+    }
+
+    private static boolean refersToAny(Expression e, Set<String> names) {
+        if (names.isEmpty()) {
+            return false;
+        }
+        if (e instanceof VarExpr) {
+            return names.contains(((VarExpr) e).getVarName());
+        }
+        boolean[] refers = { false };
+        e.mapSubexpressions(sub -> {
+            refers[0] |= refersToAny(sub, names);
+            return sub;
+        });
+        return refers[0];
+    }
+
+    public String getReport() {
+        return "Calls inlined: " + inlinedCount;
+    }
+
+    /**
+     * The number of applications inlined so far.
+     */
+    int getInlinedCount() {
+        return inlinedCount;
+    }
+}
@@ -0,0 +1,244 @@
+package edu.sjsu.stratagem;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Picks the types that the type variables of a generic type stand for where a value of
+ * that type is used.
+ *
+ * A type is generic in the type variables in it that the environment does not bind.
+ * Each use renames them apart to unknowns of its own, so that apply(id, id) can use id at
+ * two types, then matches the result against the types the use needs: the arguments of a
+ * call, or the type of the variable a let binds the value to. An unknown that nothing
+ * matches stands for ?, and so does one that is matched with ? or with part of ?,
+ * whatever else it is matched with: a generic function passed 1 and a value of type ?
+ * for the same type variable takes them both as ?, as it would if it had no types at all.
+ *
+ * Type variables are erased to ? at runtime, so a reference or function made at a type
+ * variable, like the one fn(x: 'a) { ref x } returns, has a cell or parameters of type ?.
+ * A use that instantiates it to a more precise type casts it to that type, which tightens the
+ * cell or checks the function through a proxy, before code of type ? can get hold of it and
+ * put values of other types in.
+ */
+final class Instantiation {
+    private final TypeEnvironment env;
+
+    // The unknowns of this instantiation, mapped to what they have been matched with, or to null.
+    private final Map<TypeVar, Type> unknowns = new HashMap<>();
+
+    // The unknowns matched with ?, which stand for ? whatever they are matched with later.
+    private final Set<TypeVar> dynamic = new HashSet<>();
+
+    Instantiation(TypeEnvironment env) {
+        this.env = env;
+    }
+
+    /**
+     * Instantiates a value's type to fit the type expected of it, or returns the type as it is if it is not generic.
+     */
+    static Type instantiate(Type type, Type expected, TypeEnvironment env) {
+        if (!isGeneric(type, env)) {
+            return type;
+        }
+        Instantiation instantiation = new Instantiation(env);
+        Type fresh = instantiation.fresh(type);
+        instantiation.match(expected, fresh);
+        return instantiation.apply(fresh);
+    }
+
+    /**
+     * Casts an expression of a generic type to the type a use instantiated it to, if the instantiated type
+     * has a more precise runtime type than the generic one.
+     */
+    static Expression cast(Expression e, Type genericType, Type instantiatedType) {
+        Type runtimeType = TypeTable.erase(genericType);
+        if (TypeTable.erase(instantiatedType) == runtimeType) {
+            return e;
+        }
+        return new CastExpr(instantiatedType, e, runtimeType);
+    }
+
+    /**
+     * Whether the type has type variables that the environment does not bind.
+     */
+    static boolean isGeneric(Type type, TypeEnvironment env) {
+        for (TypeVar typeVar : typeVarsIn(type)) {
+            if (!env.bindsTypeVar(typeVar)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The type variables in the type, in the order they appear.
+     */
+    static Set<TypeVar> typeVarsIn(Type type) {
+        Set<TypeVar> typeVars = new LinkedHashSet<>();
+        collectTypeVars(type, typeVars);
+        return typeVars;
+    }
+
+    private static void collectTypeVars(Type type, Set<TypeVar> typeVars) {
+        if (type instanceof TypeVar) {
+            typeVars.add((TypeVar) type);
+        } else if (type instanceof ClosureType) {
+            ClosureType closureType = (ClosureType) type;
+            for (Type argType : closureType.getArgTypes()) {
+                collectTypeVars(argType, typeVars);
+            }
+            collectTypeVars(closureType.getReturnType(), typeVars);
+        } else if (type instanceof RefType) {
+            collectTypeVars(((RefType) type).getCellType(), typeVars);
+        }
+    }
+
+    /**
+     * Renames the type variables that the type is generic in to new unknowns.
+     * Each call gives new unknowns, even for the same type variables.
+     */
+    Type fresh(Type type) {
+        return rename(type, new HashMap<>());
+    }
+
+    private Type rename(Type type, Map<TypeVar, TypeVar> renaming) {
+        if (type instanceof TypeVar) {
+            TypeVar typeVar = (TypeVar) type;
+            if (env.bindsTypeVar(typeVar)) {
+                return type;
+            }
+            TypeVar unknown = renaming.get(typeVar);
+            if (unknown == null) {
+                unknown = TypeVar.fresh(typeVar.getName());
+                renaming.put(typeVar, unknown);
+                unknowns.put(unknown, null);
+            }
+            return unknown;
+        }
+        if (type instanceof ClosureType) {
+            ClosureType closureType = (ClosureType) type;
+            Type[] argTypes = new Type[closureType.getArity()];
+            for (int i = 0; i < argTypes.length; i++) {
+                argTypes[i] = rename(closureType.getArgType(i), renaming);
+            }
+            return ClosureType.of(argTypes, rename(closureType.getReturnType(), renaming));
+        }
+        if (type instanceof RefType) {
+            return RefType.of(rename(((RefType) type).getCellType(), renaming));
+        }
+        return type;
+    }
+
+    /**
+     * Matches two types that a use needs to be the same, by giving their unknowns the parts of the other type.
+     * Parts that do not match are left for the typechecker to find consistent or not.
+     */
+    void match(Type t1, Type t2) {
+        // The parts of a value of type ? can be anything, so every unknown in the other type stands for ?.
+        if (t1 == AnyType.singleton || t2 == AnyType.singleton) {
+            for (TypeVar typeVar : typeVarsIn(t1 == AnyType.singleton ? t2 : t1)) {
+                TypeVar unknown = lastUnknown(typeVar);
+                if (unknown != null) {
+                    dynamic.add(unknown);
+                }
+            }
+            return;
+        }
+
+        t1 = resolve(t1);
+        t2 = resolve(t2);
+        if (t1 == t2) {
+            return;
+        }
+        if (isUnknown(t1)) {
+            bind((TypeVar) t1, t2);
+        } else if (isUnknown(t2)) {
+            bind((TypeVar) t2, t1);
+        } else if (t1 instanceof ClosureType && t2 instanceof ClosureType) {
+            ClosureType closureType1 = (ClosureType) t1;
+            ClosureType closureType2 = (ClosureType) t2;
+            if (closureType1.getArity() != closureType2.getArity()) {
+                return;
+            }
+            for (int i = 0; i < closureType1.getArity(); i++) {
+                match(closureType1.getArgType(i), closureType2.getArgType(i));
+            }
+            match(closureType1.getReturnType(), closureType2.getReturnType());
+        } else if (t1 instanceof RefType && t2 instanceof RefType) {
+            match(((RefType) t1).getCellType(), ((RefType) t2).getCellType());
+        }
+    }
+
+    private void bind(TypeVar unknown, Type type) {
+        // An unknown cannot stand for a type that contains it.
+        if (occursIn(unknown, type)) {
+            return;
+        }
+        unknowns.put(unknown, type);
+        if (dynamic.contains(unknown) && isUnknown(type)) {
+            dynamic.add((TypeVar) type);
+        }
+    }
+
+    private boolean occursIn(TypeVar unknown, Type type) {
+        for (TypeVar typeVar : typeVarsIn(type)) {
+            if (resolve(typeVar) == unknown) {
+                return true;
+            }
+            Type bound = unknowns.get(typeVar);
+            if (bound != null && occursIn(unknown, bound)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isUnknown(Type type) {
+        return type instanceof TypeVar && unknowns.containsKey(type);
+    }
+
+    private TypeVar lastUnknown(Type type) {
+        TypeVar last = null;
+        while (isUnknown(type)) {
+            last = (TypeVar) type;
+            type = unknowns.get(type);
+        }
+        return last;
+    }
+
+    /**
+     * The type, seen through the matches of unknowns so far. An unknown matched with ? is left as it is.
+     */
+    private Type resolve(Type type) {
+        while (isUnknown(type) && !dynamic.contains(type) && unknowns.get(type) != null) {
+            type = unknowns.get(type);
+        }
+        return type;
+    }
+
+    /**
+     * The type with its unknowns replaced by what they were matched with, or by ? if nothing or ?.
+     */
+    Type apply(Type type) {
+        type = resolve(type);
+        if (isUnknown(type)) {
+            return AnyType.singleton;
+        }
+        if (type instanceof ClosureType) {
+            ClosureType closureType = (ClosureType) type;
+            Type[] argTypes = new Type[closureType.getArity()];
+            for (int i = 0; i < argTypes.length; i++) {
+                argTypes[i] = apply(closureType.getArgType(i));
+            }
+            return ClosureType.of(argTypes, apply(closureType.getReturnType()));
+        }
+        if (type instanceof RefType) {
+            return RefType.of(apply(((RefType) type).getCellType()));
+        }
+        return type;
+    }
+}
@@ -12,10 +12,33 @@ import java.io.InputStream;
 
 public class Interpreter {
 
+    /**
+     * Usage: Interpreter [--vm] [--stats] [--no-<pass>...] [file]
+     *
+     * --vm runs the program on the VirtualMachine instead of walking the expression tree.
+     * --stats reports what type inference and the optimization passes did on standard error.
+     * --no-infer leaves parameters and let bindings without type annotations with type ?.
+     * --no-<pass> turns off an optimization pass: casts, constants, branches, dead-code, inline or escape.
+     */
     public static void main(String[] args) throws Exception {
         String inputFile = null;
-        if (args.length > 0) {
-            inputFile = args[0];
+        boolean useVm = false;
+        boolean stats = false;
+        TypeInferencer inferencer = new TypeInferencer();
+        boolean infer = true;
+        Optimizer optimizer = new Optimizer();
+        for (String arg : args) {
+            if (arg.equals("--vm")) {
+                useVm = true;
+            } else if (arg.equals("--stats")) {
+                stats = true;
+            } else if (arg.equals("--no-infer")) {
+                infer = false;
+            } else if (arg.startsWith("--no-")) {
+                optimizer.disable(arg.substring("--no-".length()));
+            } else {
+                inputFile = arg;
+            }
         }
         InputStream is = System.in;
         if (inputFile != null) {
@@ -31,8 +54,28 @@ public class Interpreter {
         ExpressionBuilderVisitor builder = new ExpressionBuilderVisitor();
         Expression prog = builder.visit(tree);
 
+        if (infer) {
+            inferencer.infer(prog);
+        }
         Type t = prog.typecheck(new TypeEnvironment());
-        Value v = prog.evaluate(new ValueEnvironment());
+
+        prog = optimizer.optimize(prog);
+        if (stats) {
+            if (infer) {
+                System.err.println(inferencer.getReport());
+            }
+            optimizer.report(System.err);
+        }
+
+        Scope scope = new Scope();
+        prog = prog.resolve(scope);
+
+        Value v;
+        if (useVm) {
+            v = VirtualMachine.run(VmCompiler.compileProgram(prog, scope.getFrameLayout()));
+        } else {
+            v = prog.evaluate(new ValueEnvironment(null, scope.getFrameLayout(), new Value[0]));
+        }
 
         System.out.println(v);
     }
@@ -0,0 +1,274 @@
+package edu.sjsu.stratagem;
+
+import edu.sjsu.stratagem.bytecode.ClassFile;
+import edu.sjsu.stratagem.bytecode.CodeBuilder;
+import edu.sjsu.stratagem.bytecode.Label;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiles the bodies of hot functions to JVM bytecode, so that HotSpot can optimize
+ * them as a whole instead of through the megamorphic Expression.evaluate() calls.
+ *
+ * Each expression emits its own translation. Expressions without one fall back to the
+ * tree-walker: the generated code keeps a reference to the node and calls evaluate() on it.
+ */
+public final class JitCompiler {
+    /**
+     * The number of invocations after which a function is compiled.
+     * Set the stratagem.jit.threshold system property to 0 to disable the JIT.
+     */
+    static final int threshold = Integer.getInteger("stratagem.jit.threshold", 1000);
+
+    private static final String PACKAGE = "edu/sjsu/stratagem/";
+    private static final String COMPILED_FUNCTION = PACKAGE + "CompiledFunction";
+    private static final String JIT_RUNTIME = PACKAGE + "JitRuntime";
+    private static final String EXPRESSION = PACKAGE + "Expression";
+    private static final String VALUE_ENVIRONMENT = PACKAGE + "ValueEnvironment";
+    private static final String EXPRESSION_DESC = "L" + EXPRESSION + ";";
+    private static final String VALUE_DESC = "L" + PACKAGE + "Value;";
+    private static final String VALUE_ENVIRONMENT_DESC = "L" + VALUE_ENVIRONMENT + ";";
+
+    // Local variables of the generated invoke() method.
+    private static final int THIS = 0;
+    private static final int ENV = 1;
+
+    private static int compiledCount = 0;
+
+    private CodeBuilder code;
+    private List<Expression> nodes = new ArrayList<>();
+    private List<Value> constants = new ArrayList<>();
+
+    private JitCompiler(CodeBuilder code) {
+        this.code = code;
+    }
+
+    /**
+     * Compiles the body of a resolved function.
+     * Returns null if the function cannot be compiled, in which case it stays interpreted.
+     */
+    static CompiledFunction compile(FunctionDeclExpr function) {
+        try {
+            String className = PACKAGE + "generated/Function" + (compiledCount++);
+            ClassFile classFile = new ClassFile(className, COMPILED_FUNCTION);
+
+            String constructorDesc = "([" + EXPRESSION_DESC + "[" + VALUE_DESC + ")V";
+            CodeBuilder constructor = classFile.addMethod(ClassFile.ACC_PUBLIC, "<init>", constructorDesc);
+            constructor.aload(0);
+            constructor.aload(1);
+            constructor.aload(2);
+            constructor.invokespecial(COMPILED_FUNCTION, "<init>", constructorDesc);
+            constructor.insn(CodeBuilder.RETURN);
+
+            String invokeDesc = "(" + VALUE_ENVIRONMENT_DESC + ")" + VALUE_DESC;
+            CodeBuilder invoke = classFile.addMethod(ClassFile.ACC_PUBLIC, "invoke", invokeDesc);
+            JitCompiler jit;
+            if (!function.hasUnboxedEntry()) {
+                jit = new JitCompiler(invoke);
+                function.getBody().emitBytecode(jit);
+                invoke.insn(CodeBuilder.ARETURN);
+            } else if (function.getReturnType() == IntType.singleton) {
+                // The body goes in invokeInt(), and invoke() boxes its result for callers that need a Value.
+                String invokeIntDesc = "(" + VALUE_ENVIRONMENT_DESC + ")I";
+                CodeBuilder invokeInt = classFile.addMethod(ClassFile.ACC_PUBLIC, "invokeInt", invokeIntDesc);
+                jit = new JitCompiler(invokeInt);
+                function.getBody().emitIntBytecode(jit);
+                invokeInt.insn(CodeBuilder.IRETURN);
+
+                invoke.aload(THIS);
+                invoke.aload(ENV);
+                invoke.invokevirtual(className, "invokeInt", invokeIntDesc);
+                invoke.invokestatic(JIT_RUNTIME, "boxInt", "(I)" + VALUE_DESC);
+                invoke.insn(CodeBuilder.ARETURN);
+            } else {
+                String invokeBooleanDesc = "(" + VALUE_ENVIRONMENT_DESC + ")Z";
+                CodeBuilder invokeBoolean =
+                        classFile.addMethod(ClassFile.ACC_PUBLIC, "invokeBoolean", invokeBooleanDesc);
+                jit = new JitCompiler(invokeBoolean);
+                Label falseLabel = new Label();
+                function.getBody().emitConditionBytecode(jit, falseLabel);
+                invokeBoolean.iconst(1);
+                invokeBoolean.insn(CodeBuilder.IRETURN);
+                invokeBoolean.mark(falseLabel);
+                invokeBoolean.iconst(0);
+                invokeBoolean.insn(CodeBuilder.IRETURN);
+
+                invoke.aload(THIS);
+                invoke.aload(ENV);
+                invoke.invokevirtual(className, "invokeBoolean", invokeBooleanDesc);
+                invoke.invokestatic(JIT_RUNTIME, "boxBoolean", "(Z)" + VALUE_DESC);
+                invoke.insn(CodeBuilder.ARETURN);
+            }
+
+            byte[] bytes = classFile.toByteArray();
+            Class<?> compiledClass = new JitClassLoader().define(className.replace('/', '.'), bytes);
+            return (CompiledFunction) compiledClass
+                    .getConstructor(Expression[].class, Value[].class)
+                    .newInstance(jit.nodes.toArray(new Expression[0]), jit.constants.toArray(new Value[0]));
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+            if (Boolean.getBoolean("stratagem.jit.debug")) {
+                e.printStackTrace();
+            }
+            return null;
+        }
+    }
+
+    CodeBuilder getCode() {
+        return code;
+    }
+
+    /**
+     * Leaves the value of the expression on the stack by calling evaluate() on it.
+     */
+    void emitFallback(Expression e) {
+        emitNode(e);
+        code.aload(ENV);
+        code.invokeinterface(EXPRESSION, "evaluate", "(" + VALUE_ENVIRONMENT_DESC + ")" + VALUE_DESC);
+    }
+
+    /**
+     * Pushes a reference to an expression node.
+     */
+    void emitNode(Expression e) {
+        code.aload(THIS);
+        code.getfield(COMPILED_FUNCTION, "nodes", "[" + EXPRESSION_DESC);
+        code.iconst(nodes.size());
+        code.aaload();
+        nodes.add(e);
+    }
+
+    void emitConstant(Value v) {
+        code.aload(THIS);
+        code.getfield(COMPILED_FUNCTION, "constants", "[" + VALUE_DESC);
+        code.iconst(constants.size());
+        code.aaload();
+        constants.add(v);
+    }
+
+    void emitGetSlot(int slot) {
+        code.aload(ENV);
+        code.iconst(slot);
+        code.invokevirtual(VALUE_ENVIRONMENT, "getSlot", "(I)" + VALUE_DESC);
+    }
+
+    /**
+     * Stores the value of the expression in a slot of the frame.
+     */
+    void emitSetSlot(int slot, Expression value) {
+        code.aload(ENV);
+        code.iconst(slot);
+        value.emitBytecode(this);
+        code.invokevirtual(VALUE_ENVIRONMENT, "setSlot", "(I" + VALUE_DESC + ")V");
+    }
+
+    /**
+     * Makes the recursive closure in the slot see itself among its captured values.
+     */
+    void emitBindSelf(int slot, int index) {
+        emitGetSlot(slot);
+        code.iconst(index);
+        emitRuntimeCall("bindSelf", "(" + VALUE_DESC + "I)V");
+    }
+
+    void emitGetCaptured(int index) {
+        code.aload(ENV);
+        code.iconst(index);
+        code.invokevirtual(VALUE_ENVIRONMENT, "getCaptured", "(I)" + VALUE_DESC);
+    }
+
+    /**
+     * Calls one of the JitRuntime helpers.
+     */
+    void emitRuntimeCall(String name, String descriptor) {
+        code.invokestatic(JIT_RUNTIME, name, descriptor);
+    }
+
+    void emitBoxInt() {
+        emitRuntimeCall("boxInt", "(I)" + VALUE_DESC);
+    }
+
+    void emitUnboxInt() {
+        emitRuntimeCall("unboxInt", "(" + VALUE_DESC + ")I");
+    }
+
+    void emitBoxBoolean() {
+        emitRuntimeCall("boxBoolean", "(Z)" + VALUE_DESC);
+    }
+
+    /**
+     * Branches to the target if the value on the stack is false.
+     */
+    void emitBranchIfFalse(Label target, boolean fromCast) {
+        code.iconst(fromCast ? 1 : 0);
+        emitRuntimeCall("isTrue", "(" + VALUE_DESC + "Z)Z");
+        code.jump(CodeBuilder.IFEQ, target);
+    }
+
+    void emitCast(CastExpr cast, Expression body) {
+        emitNode(cast);
+        body.emitBytecode(this);
+        emitRuntimeCall("cast", "(" + EXPRESSION_DESC + VALUE_DESC + ")" + VALUE_DESC);
+    }
+
+    /**
+     * Emits a call, which puts the arguments straight into a frame created for the callee.
+     */
+    void emitCall(Expression closureExpr, Expression[] args, boolean tail) {
+        if (tail) {
+            code.aload(ENV);
+        }
+        emitClosureAndFrame(closureExpr, args);
+        if (tail) {
+            emitRuntimeCall("tailCall",
+                    "(" + VALUE_ENVIRONMENT_DESC + VALUE_DESC + VALUE_ENVIRONMENT_DESC + ")" + VALUE_DESC);
+        } else {
+            emitRuntimeCall("call", "(" + VALUE_DESC + VALUE_ENVIRONMENT_DESC + ")" + VALUE_DESC);
+        }
+    }
+
+    /**
+     * Emits a call whose Int result is left on the stack as a Java int.
+     */
+    void emitIntCall(Expression closureExpr, Expression[] args) {
+        emitClosureAndFrame(closureExpr, args);
+        emitRuntimeCall("callInt", "(" + VALUE_DESC + VALUE_ENVIRONMENT_DESC + ")I");
+    }
+
+    /**
+     * Emits a call whose Bool result is left on the stack as a Java boolean.
+     */
+    void emitBooleanCall(Expression closureExpr, Expression[] args) {
+        emitClosureAndFrame(closureExpr, args);
+        emitRuntimeCall("callBoolean", "(" + VALUE_DESC + VALUE_ENVIRONMENT_DESC + ")Z");
+    }
+
+    /**
+     * Pushes the closure and a frame for the call holding the arguments.
+     */
+    private void emitClosureAndFrame(Expression closureExpr, Expression[] args) {
+        closureExpr.emitBytecode(this);
+        code.dup();
+        emitRuntimeCall("newFrame", "(" + VALUE_DESC + ")" + VALUE_ENVIRONMENT_DESC);
+        for (int i = 0; i < args.length; i++) {
+            code.dup();
+            code.iconst(i);
+            args[i].emitBytecode(this);
+            code.invokevirtual(VALUE_ENVIRONMENT, "setSlot", "(I" + VALUE_DESC + ")V");
+        }
+    }
+
+    /**
+     * Each compiled function gets its own loader, so that its class can be
+     * unloaded once the function is no longer reachable.
+     */
+    private static class JitClassLoader extends ClassLoader {
+        JitClassLoader() {
+            super(JitCompiler.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
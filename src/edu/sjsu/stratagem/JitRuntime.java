@@ -0,0 +1,69 @@
+package edu.sjsu.stratagem;
+
+import edu.sjsu.stratagem.exception.StratagemCastException;
+import edu.sjsu.stratagem.exception.StratagemRuntimeException;
+
+/**
+ * Operations that code generated by the JitCompiler calls into.
+ * These must be public, since generated classes live outside of this package.
+ */
+public final class JitRuntime {
+    private JitRuntime() {}
+
+    public static Value boxInt(int i) {
+        return IntVal.of(i);
+    }
+
+    public static int unboxInt(Value v) {
+        if (!(v instanceof IntVal)) {
+            throw new StratagemCastException("Expected int, but got " + v);
+        }
+        return ((IntVal) v).toInt();
+    }
+
+    public static Value boxBoolean(boolean b) {
+        return BoolVal.of(b);
+    }
+
+    /**
+     * Checks the value of an if-expression's condition.
+     * If the condition was ?-typed, a non-boolean is a failed cast.
+     */
+    public static boolean isTrue(Value v, boolean fromCast) {
+        if (!(v instanceof BoolVal)) {
+            if (fromCast) {
+                throw new StratagemCastException("Cannot cast " + v + " to " + BoolType.singleton);
+            }
+            throw new StratagemRuntimeException("Expected boolean, but got " + v);
+        }
+        return ((BoolVal) v).toBoolean();
+    }
+
+    public static void bindSelf(Value closure, int index) {
+        LetRecExpr.bindSelf(closure, index);
+    }
+
+    public static Value cast(Expression castExpr, Value v) {
+        return ((CastExpr) castExpr).check(v);
+    }
+
+    public static ValueEnvironment newFrame(Value closure) {
+        return ((ClosureVal) closure).newFrame();
+    }
+
+    public static Value call(Value closure, ValueEnvironment frame) {
+        return ((ClosureVal) closure).call(frame);
+    }
+
+    public static int callInt(Value closure, ValueEnvironment frame) {
+        return ((ClosureVal) closure).callInt(frame);
+    }
+
+    public static boolean callBoolean(Value closure, ValueEnvironment frame) {
+        return ((ClosureVal) closure).callBoolean(frame);
+    }
+
+    public static Value tailCall(ValueEnvironment env, Value closure, ValueEnvironment frame) {
+        return env.requestTailCall((ClosureVal) closure, frame);
+    }
+}
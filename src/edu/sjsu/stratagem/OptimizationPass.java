@@ -0,0 +1,22 @@
+package edu.sjsu.stratagem;
+
+/**
+ * A rewrite of typechecked expressions that does not change what the program does.
+ * Passes run after typecheck() and before resolve(), in the order the Optimizer gives them.
+ */
+interface OptimizationPass {
+    /**
+     * The name that turns the pass off on the command line, as in --no-<name>.
+     */
+    String getName();
+
+    /**
+     * Returns the optimized expression, which replaces the one given.
+     */
+    Expression optimize(Expression e);
+
+    /**
+     * Describes what the pass has changed so far, for --stats.
+     */
+    String getReport();
+}
@@ -0,0 +1,65 @@
+package edu.sjsu.stratagem;
+
+import edu.sjsu.stratagem.exception.StratagemException;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs the optimization passes over a typechecked program.
+ *
+ * The passes run once each, in an order that lets each one build on those before it:
+ * removing casts exposes literals to fold, and folding exposes conditions to branch on.
+ */
+class Optimizer {
+    private List<OptimizationPass> passes = new ArrayList<>();
+    private Set<String> disabled = new HashSet<>();
+
+    Optimizer() {
+        passes.add(new CastEliminator());
+        passes.add(new ConstantFolder());
+        passes.add(new BranchFolder());
+        passes.add(new DeadCodeEliminator());
+        passes.add(new Inliner());
+        passes.add(new EscapeAnalyzer());
+    }
+
+    /**
+     * Turns off the pass with the given name.
+     */
+    void disable(String name) {
+        for (OptimizationPass pass : passes) {
+            if (pass.getName().equals(name)) {
+                disabled.add(name);
+                return;
+            }
+        }
+        throw new StratagemException("Unknown optimization pass: " + name);
+    }
+
+    /**
+     * Returns the optimized expression, which replaces the one given.
+     */
+    Expression optimize(Expression e) {
+        for (OptimizationPass pass : passes) {
+            if (!disabled.contains(pass.getName())) {
+                e = pass.optimize(e);
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Prints what each pass that ran has changed.
+     */
+    void report(PrintStream out) {
+        for (OptimizationPass pass : passes) {
+            if (!disabled.contains(pass.getName())) {
+                out.println(pass.getReport());
+            }
+        }
+    }
+}
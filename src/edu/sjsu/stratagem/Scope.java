@@ -0,0 +1,108 @@
+package edu.sjsu.stratagem;
+
+import edu.sjsu.stratagem.exception.StratagemTypecheckException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compile-time scope used to resolve variable names into frame slots.
+ * Each scope corresponds to one runtime frame (a ValueEnvironment), and each
+ * variable declared in it is assigned a fixed slot in that frame.
+ *
+ * Let bindings also get a slot in the scope of the function they appear in,
+ * which stays reserved after the binding goes out of scope.
+ *
+ * Variables declared in an enclosing scope are free in this one. They are
+ * captured: copied into the closure when it is created, and accessed through
+ * the closure's flat array of captured values rather than an environment chain.
+ */
+public class Scope {
+    private List<String> names = new ArrayList<>();
+    private List<String> visibleNames = new ArrayList<>();
+    private List<String> capturedNames = new ArrayList<>();
+    private List<Expression> captureSources = new ArrayList<>();
+    private Scope outerScope;
+
+    /**
+     * Constructor for global scope
+     */
+    public Scope() {}
+
+    /**
+     * Constructor for local scope of a function
+     */
+    public Scope(Scope outerScope) {
+        this.outerScope = outerScope;
+    }
+
+    /**
+     * Resolves a variable to either a slot in the current frame or an index
+     * into the captured values of the current closure. The innermost
+     * declaration of a name wins.
+     */
+    public Expression resolveVar(String varName) {
+        int slot = visibleNames.lastIndexOf(varName);
+        if (slot >= 0) {
+            return new LocalVarExpr(varName, slot);
+        }
+
+        if (outerScope == null) {
+            throw new StratagemTypecheckException("Unbound variable: " + varName);
+        }
+
+        int index = capturedNames.indexOf(varName);
+        if (index < 0) {
+            // Resolving the variable in the outer scope captures it there too,
+            // if it is free in the enclosing function as well.
+            captureSources.add(outerScope.resolveVar(varName));
+            capturedNames.add(varName);
+            index = capturedNames.size() - 1;
+        }
+        return new CapturedVarExpr(varName, index);
+    }
+
+    /**
+     * Declares a new variable in this scope, returning its slot.
+     */
+    public int createVar(String varName) {
+        if (visibleNames.contains(varName)) {
+            throw new StratagemTypecheckException("Redeclaring existing var " + varName);
+        }
+        return declareVar(varName);
+    }
+
+    /**
+     * Declares a new variable in this scope, shadowing any variable of the same name,
+     * and returns its slot.
+     */
+    public int declareVar(String varName) {
+        names.add(varName);
+        visibleNames.add(varName);
+        return names.size() - 1;
+    }
+
+    /**
+     * Ends the scope of a variable declared with declareVar().
+     * Its slot is not reused, so that frame layouts keep one name per slot.
+     */
+    public void endVar(int slot) {
+        visibleNames.set(slot, null);
+    }
+
+    /**
+     * The variable names of this scope, indexed by slot.
+     * Used to lay out the runtime frame for this scope.
+     */
+    public String[] getFrameLayout() {
+        return names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * The free variables of this scope, indexed by capture index, as expressions
+     * to be evaluated in the enclosing frame when the closure is created.
+     */
+    public Expression[] getCaptureSources() {
+        return captureSources.toArray(new Expression[captureSources.size()]);
+    }
+}
@@ -1,36 +1,192 @@
 package edu.sjsu.stratagem;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Types in Stratagem.
  * Typechecking a Stratagem expression should return a Stratagem type.
+ *
+ * Types are hash-consed: structurally equal types are the same instance,
+ * so types can be compared with ==.
  */
 public interface Type {
+    /**
+     * Whether values of the other type can be cast to this type.
+     * This is symmetric except for type variables, which ? can be cast from but not to.
+     * Type variables are erased at runtime, so a cast from ? cannot check them, and values
+     * must not come out of a type that contains them: neither as the result of a function
+     * nor from a reference. Values going into a function's arguments are still checked by
+     * the function that takes them.
+     */
     boolean consistentWith(Type other);
     Type findSupertypeWith(Type other);
+
+    /**
+     * Finds the most precise type whose values pass casts to both this type and the other,
+     * or returns null if no value can pass both.
+     * Successive casts of the same value compose into a single cast to this type.
+     */
+    Type meetWith(Type other);
+
+    /**
+     * A small integer that identifies the type, for use in lookup tables.
+     */
+    int getId();
 }
 
 // NOTE: Using package access so that all implementations of Type
 // can be included in the same file.
 
+/**
+ * Bookkeeping shared by the canonical types.
+ */
+final class TypeTable {
+    private static int nextId = 0;
+
+    private TypeTable() {}
+
+    static int newId() {
+        return nextId++;
+    }
+
+    /**
+     * Whether the type has no ? or type variable anywhere in it.
+     */
+    static boolean isStatic(Type type) {
+        if (type instanceof ClosureType) {
+            ClosureType closureType = (ClosureType) type;
+            for (Type argType : closureType.getArgTypes()) {
+                if (!isStatic(argType)) {
+                    return false;
+                }
+            }
+            return isStatic(closureType.getReturnType());
+        }
+        if (type instanceof RefType) {
+            return isStatic(((RefType) type).getCellType());
+        }
+        return type != AnyType.singleton && !(type instanceof TypeVar);
+    }
+
+    /**
+     * The type that values of the given type have at runtime, which is the type with its type variables
+     * replaced by ?.
+     */
+    static Type erase(Type type) {
+        if (type instanceof TypeVar) {
+            return AnyType.singleton;
+        }
+        if (type instanceof ClosureType) {
+            ClosureType closureType = (ClosureType) type;
+            Type[] argTypes = closureType.getArgTypes();
+            Type[] erasedArgTypes = new Type[argTypes.length];
+            boolean erased = false;
+            for (int i = 0; i < argTypes.length; i++) {
+                erasedArgTypes[i] = erase(argTypes[i]);
+                erased |= erasedArgTypes[i] != argTypes[i];
+            }
+            Type erasedReturnType = erase(closureType.getReturnType());
+            if (!erased && erasedReturnType == closureType.getReturnType()) {
+                return type;
+            }
+            return ClosureType.of(erasedArgTypes, erasedReturnType);
+        }
+        if (type instanceof RefType) {
+            return RefType.of(erase(((RefType) type).getCellType()));
+        }
+        return type;
+    }
+}
+
+/**
+ * A table keyed by pairs of types, using their ids.
+ * Lookups do not allocate, so the table can be consulted on every cast.
+ */
+final class TypePairTable<V> {
+    private long[] keys = new long[16];
+    private Object[] values = new Object[16];
+    private int size;
+
+    @SuppressWarnings("unchecked")
+    V get(Type t1, Type t2) {
+        long key = key(t1, t2);
+        int mask = keys.length - 1;
+        for (int i = hash(key) & mask; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return (V) values[i];
+            }
+        }
+        return null;
+    }
+
+    void put(Type t1, Type t2, V value) {
+        if (2 * (size + 1) > keys.length) {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new Object[oldValues.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] != null) {
+                    insert(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+        insert(key(t1, t2), value);
+    }
+
+    private void insert(long key, Object value) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (values[i] != null && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        if (values[i] == null) {
+            size++;
+        }
+        keys[i] = key;
+        values[i] = value;
+    }
+
+    private static long key(Type t1, Type t2) {
+        return ((long) t1.getId() << 32) | t2.getId();
+    }
+
+    private static int hash(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32);
+    }
+}
+
 /**
  * Dynamic any type.
  */
 class AnyType implements Type {
     public static final AnyType singleton = new AnyType();
 
-    public boolean consistentWith(Type other) {
-        return true;
+    private final int id = TypeTable.newId();
+
+    private AnyType() {}
+
+    public int getId() {
+        return id;
     }
 
-    @Override
-    public boolean equals(Object other) {
-        return other instanceof AnyType;
+    public boolean consistentWith(Type other) {
+        return true;
     }
 
     public Type findSupertypeWith(Type other) {
         return this;
     }
 
+    public Type meetWith(Type other) {
+        return other;
+    }
+
     @Override
     public String toString() {
         return "?";
@@ -43,18 +199,26 @@ class AnyType implements Type {
 class BoolType implements Type {
     public static final BoolType singleton = new BoolType();
 
-    public boolean consistentWith(Type other) {
-        return equals(other) || other instanceof AnyType;
+    private final int id = TypeTable.newId();
+
+    private BoolType() {}
+
+    public int getId() {
+        return id;
     }
 
-    @Override
-    public boolean equals(Object other) {
-        return other instanceof BoolType;
+    public boolean consistentWith(Type other) {
+        return this == other || other == AnyType.singleton;
     }
 
     public Type findSupertypeWith(Type other) {
-        return other instanceof BoolType ? this
-                                         : AnyType.singleton;
+        return other == this ? this
+                             : AnyType.singleton;
+    }
+
+    public Type meetWith(Type other) {
+        return other == this || other == AnyType.singleton ? this
+                                                           : null;
     }
 
     @Override
@@ -64,19 +228,89 @@ class BoolType implements Type {
 }
 
 /**
- * A closure's type. Closures take one argument and have one return value.
+ * A closure's type. Closures take any number of arguments and have one return value.
+ *
+ * Closure types are canonical, so consistency and supertypes only have to be
+ * worked out once for each pair of types. The results are kept by type id.
  */
 class ClosureType implements Type {
-    private Type arg;
+    // Types of each arity are kept apart, since their keys are made differently. Types with one argument are
+    // keyed by their argument and return types, types without arguments by their return type alone, and types
+    // with more arguments by the type without their last argument, together with that argument.
+    private static final List<TypePairTable<ClosureType>> canonical = new ArrayList<>();
+    private static final TypePairTable<Boolean> consistency = new TypePairTable<>();
+    private static final TypePairTable<Type> supertypes = new TypePairTable<>();
+    private static final TypePairTable<Type> meets = new TypePairTable<>();
+
+    private final int id = TypeTable.newId();
+    private Type[] args;
     private Type ret;
 
-    public ClosureType(Type arg, Type ret) {
-        this.arg = arg;
+    private ClosureType(Type[] args, Type ret) {
+        this.args = args;
         this.ret = ret;
     }
 
-    public Type getArgType() {
-        return arg;
+    /**
+     * Returns the canonical type of closures from arg to ret.
+     */
+    public static ClosureType of(Type arg, Type ret) {
+        TypePairTable<ClosureType> table = canonicalTable(1);
+        ClosureType type = table.get(arg, ret);
+        if (type == null) {
+            type = new ClosureType(new Type[] { arg }, ret);
+            table.put(arg, ret, type);
+        }
+        return type;
+    }
+
+    /**
+     * Returns the canonical type of closures from the given arguments to ret.
+     */
+    public static ClosureType of(Type[] args, Type ret) {
+        if (args.length == 1) {
+            return of(args[0], ret);
+        }
+
+        Type key1 = ret;
+        Type key2 = ret;
+        if (args.length > 1) {
+            key1 = of(Arrays.copyOf(args, args.length - 1), ret);
+            key2 = args[args.length - 1];
+        }
+        TypePairTable<ClosureType> table = canonicalTable(args.length);
+        ClosureType type = table.get(key1, key2);
+        if (type == null) {
+            type = new ClosureType(args.clone(), ret);
+            table.put(key1, key2, type);
+        }
+        return type;
+    }
+
+    private static TypePairTable<ClosureType> canonicalTable(int arity) {
+        while (canonical.size() <= arity) {
+            canonical.add(new TypePairTable<>());
+        }
+        return canonical.get(arity);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getArity() {
+        return args.length;
+    }
+
+    public Type getArgType(int i) {
+        return args[i];
+    }
+
+    /**
+     * The argument types. The array must not be modified.
+     */
+    public Type[] getArgTypes() {
+        return args;
     }
 
     public Type getReturnType() {
@@ -84,44 +318,94 @@ class ClosureType implements Type {
     }
 
     public boolean consistentWith(Type other) {
-        if (other instanceof AnyType) {
+        if (this == other) {
             return true;
         }
+        if (other == AnyType.singleton) {
+            return ret.consistentWith(other);
+        }
 
-        // The below is like equals() but instead calls .consistentWith() on arg and ret.
-        if (!(other instanceof ClosureType)) {
+        // The below is like == but instead calls .consistentWith() on args and ret.
+        if (!(other instanceof ClosureType) || ((ClosureType) other).args.length != args.length) {
             return false;
         }
 
-        ClosureType that = (ClosureType)other;
-
-        return arg.consistentWith(that.arg) && ret.consistentWith(that.ret);
+        Boolean consistent = consistency.get(this, other);
+        if (consistent == null) {
+            ClosureType that = (ClosureType)other;
+            // Arguments are cast the other way, from this type's to the other's.
+            consistent = ret.consistentWith(that.ret);
+            for (int i = 0; consistent && i < args.length; i++) {
+                consistent = that.args[i].consistentWith(args[i]);
+            }
+            consistency.put(this, other, consistent);
+        }
+        return consistent;
     }
 
-    @Override
-    public boolean equals(Object other) {
-        if (!(other instanceof ClosureType)) {
-            return false;
+    public Type findSupertypeWith(Type other) {
+        if (this == other) {
+            return this;
+        }
+        if (!(other instanceof ClosureType) || ((ClosureType) other).args.length != args.length) {
+            return AnyType.singleton;
         }
 
-        ClosureType that = (ClosureType)other;
-
-        return arg.equals(that.arg) && ret.equals(that.ret);
+        Type supertype = supertypes.get(this, other);
+        if (supertype == null) {
+            ClosureType that = (ClosureType)other;
+            Type[] argSupertypes = new Type[args.length];
+            for (int i = 0; i < args.length; i++) {
+                argSupertypes[i] = args[i].findSupertypeWith(that.args[i]);
+            }
+            supertype = ClosureType.of(argSupertypes, ret.findSupertypeWith(that.ret));
+            supertypes.put(this, other, supertype);
+        }
+        return supertype;
     }
 
-    public Type findSupertypeWith(Type other) {
-        if (!(other instanceof ClosureType)) {
-            return AnyType.singleton;
+    public Type meetWith(Type other) {
+        if (this == other || other == AnyType.singleton) {
+            return this;
+        }
+        if (!(other instanceof ClosureType) || ((ClosureType) other).args.length != args.length) {
+            return null;
+        }
+
+        // Conflicts are not recorded, since the table uses null for missing entries.
+        Type meet = meets.get(this, other);
+        if (meet == null) {
+            ClosureType that = (ClosureType)other;
+            Type[] argMeets = new Type[args.length];
+            for (int i = 0; i < args.length; i++) {
+                argMeets[i] = args[i].meetWith(that.args[i]);
+                if (argMeets[i] == null) {
+                    return null;
+                }
+            }
+            Type retMeet = ret.meetWith(that.ret);
+            if (retMeet == null) {
+                return null;
+            }
+            meet = ClosureType.of(argMeets, retMeet);
+            meets.put(this, other, meet);
         }
-        ClosureType that = (ClosureType)other;
-        return new ClosureType(
-                arg.findSupertypeWith(that.arg),
-                ret.findSupertypeWith(that.ret));
+        return meet;
     }
 
     @Override
     public String toString() {
-        return arg + " -> " + ret;
+        if (args.length == 1) {
+            return args[0] + " -> " + ret;
+        }
+        StringBuilder s = new StringBuilder("(");
+        for (int i = 0; i < args.length; i++) {
+            if (i > 0) {
+                s.append(", ");
+            }
+            s.append(args[i]);
+        }
+        return s.append(") -> ").append(ret).toString();
     }
 }
 
@@ -131,18 +415,26 @@ class ClosureType implements Type {
 class IntType implements Type {
     public static final IntType singleton = new IntType();
 
-    public boolean consistentWith(Type other) {
-        return equals(other) || other instanceof AnyType;
+    private final int id = TypeTable.newId();
+
+    private IntType() {}
+
+    public int getId() {
+        return id;
     }
 
-    @Override
-    public boolean equals(Object other) {
-        return other instanceof IntType;
+    public boolean consistentWith(Type other) {
+        return this == other || other == AnyType.singleton;
     }
 
     public Type findSupertypeWith(Type other) {
-        return other instanceof IntType ? this
-                                        : AnyType.singleton;
+        return other == this ? this
+                             : AnyType.singleton;
+    }
+
+    public Type meetWith(Type other) {
+        return other == this || other == AnyType.singleton ? this
+                                                           : null;
     }
 
     @Override
@@ -155,56 +447,76 @@ class IntType implements Type {
  * References.
  */
 class RefType implements Type {
+    private static final Map<Type, RefType> canonical = new HashMap<>();
+
+    private final int id = TypeTable.newId();
     private Type cell;
 
-    public RefType(Type cell) {
+    private RefType(Type cell) {
         this.cell = cell;
     }
 
+    /**
+     * Returns the canonical type of references to cells of the given type.
+     */
+    public static RefType of(Type cell) {
+        RefType type = canonical.get(cell);
+        if (type == null) {
+            type = new RefType(cell);
+            canonical.put(cell, type);
+        }
+        return type;
+    }
+
+    public int getId() {
+        return id;
+    }
+
     public Type getCellType() {
         return cell;
     }
 
     public boolean consistentWith(Type other) {
-        // “Reference types are invariant with respect to consistency.”
-        //   -- Gradual Typing for Functional Languages, p. 85
-        //
-        // Two reference types are not consistent just because their cell types are consistent. Instead, for references
-        // to be consistent, their cell types must follow the stronger requirement of being equal. Otherwise, we could
-        // violate type safety with the following program:
+        // References are monotonic: casting a reference tightens the type of its cell in place, and writes through a
+        // reference whose cell type is imprecise are checked against the cell's runtime type. That keeps programs like
+        // this one safe even though the cell types only have to be consistent:
         //
         //   let r1 = ref (fn(x) { x }) in
-        //   let r2 : ref ? = r1 in
+        //   let r2 : Ref ? = r1 in
         //     r2 ← 1;
         //     !r1(2)
         //
-        // The application of 2 to r1 fails because r1, which has the type of a reference to function, points (unsafely)
-        // to a cell with an integer.
-        return equals(other) || other instanceof AnyType;
+        // The write through r2 fails, because the cell r1 and r2 share still holds functions.
+        if (this == other) {
+            return true;
+        }
+        if (other == AnyType.singleton) {
+            return cell.consistentWith(other);
+        }
+        // Values are both read from and written to the cell, so they are cast both ways.
+        return other instanceof RefType && cell.consistentWith(((RefType) other).cell)
+                && ((RefType) other).cell.consistentWith(cell);
     }
 
-    @Override
-    public boolean equals(Object other) {
+    public Type findSupertypeWith(Type other) {
+        if (this == other) {
+            return this;
+        }
         if (!(other instanceof RefType)) {
-            return false;
+            return AnyType.singleton;
         }
-
-        RefType that = (RefType)other;
-
-        return cell.equals(that.cell);
+        return of(cell.findSupertypeWith(((RefType) other).cell));
     }
 
-    public Type findSupertypeWith(Type other) {
-        // We cannot use the consistent-with relationship here or we would violate type safety, for example:
-        //
-        //   let r1 = ref (fn(x) { x }) in
-        //   let r2 : Ref ? = if (true) { r1 } else { ref unit } in
-        //     r2 ← 1;
-        //     !r1(2)
-        //
-        // See also consistentWith() above.
-        return equals(other) ? this
-                             : AnyType.singleton;
+    public Type meetWith(Type other) {
+        if (this == other || other == AnyType.singleton) {
+            return this;
+        }
+        if (!(other instanceof RefType)) {
+            return null;
+        }
+        Type meet = cell.meetWith(((RefType) other).cell);
+        return meet == null ? null : of(meet);
     }
 
     @Override
@@ -219,18 +531,26 @@ class RefType implements Type {
 class StringType implements Type {
     public static final StringType singleton = new StringType();
 
-    public boolean consistentWith(Type other) {
-        return equals(other) || other instanceof AnyType;
+    private final int id = TypeTable.newId();
+
+    private StringType() {}
+
+    public int getId() {
+        return id;
     }
 
-    @Override
-    public boolean equals(Object other) {
-        return other instanceof StringType;
+    public boolean consistentWith(Type other) {
+        return this == other || other == AnyType.singleton;
     }
 
     public Type findSupertypeWith(Type other) {
-        return other instanceof StringType ? this
-                                           : AnyType.singleton;
+        return other == this ? this
+                             : AnyType.singleton;
+    }
+
+    public Type meetWith(Type other) {
+        return other == this || other == AnyType.singleton ? this
+                                                           : null;
     }
 
     @Override
@@ -245,22 +565,96 @@ class StringType implements Type {
 class UnitType implements Type {
     public static final UnitType singleton = new UnitType();
 
+    private final int id = TypeTable.newId();
+
+    private UnitType() {}
+
+    public int getId() {
+        return id;
+    }
+
     public boolean consistentWith(Type other) {
-        return equals(other) || other instanceof AnyType;
+        return this == other || other == AnyType.singleton;
+    }
+
+    public Type findSupertypeWith(Type other) {
+        return other == this ? this
+                             : AnyType.singleton;
+    }
+
+    public Type meetWith(Type other) {
+        return other == this || other == AnyType.singleton ? this
+                                                           : null;
     }
 
     @Override
-    public boolean equals(Object other) {
-        return other instanceof UnitType;
+    public String toString() {
+        return "Unit";
+    }
+}
+
+/**
+ * Type variables, like 'a. A function whose parameter types mention a type variable is
+ * generic in it: each use of the function picks the type the variable stands for. Inside
+ * the function the variable is one unknown type.
+ *
+ * Type variables are only seen by the typechecker. At runtime they are erased to ?, so a
+ * cast to a type variable could not check anything. Values of a type variable can be cast
+ * to ?, but nothing can be cast to a type variable other than a value already of its type.
+ */
+class TypeVar implements Type {
+    private static final Map<String, TypeVar> canonical = new HashMap<>();
+
+    private final int id = TypeTable.newId();
+    private final String name;
+
+    private TypeVar(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the canonical type variable with the given name, which is written without its quote.
+     */
+    public static TypeVar of(String name) {
+        TypeVar type = canonical.get(name);
+        if (type == null) {
+            type = new TypeVar(name);
+            canonical.put(name, type);
+        }
+        return type;
+    }
+
+    /**
+     * Returns a new type variable, distinct from every other, for the typechecker to solve for.
+     */
+    static TypeVar fresh(String name) {
+        return new TypeVar(name);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean consistentWith(Type other) {
+        return this == other;
     }
 
     public Type findSupertypeWith(Type other) {
-        return other instanceof UnitType ? this
-                                         : AnyType.singleton;
+        return other == this ? this
+                             : AnyType.singleton;
+    }
+
+    public Type meetWith(Type other) {
+        return other == this || other == AnyType.singleton ? this
+                                                           : null;
     }
 
     @Override
     public String toString() {
-        return "Unit";
+        return "'" + name;
     }
 }
@@ -3,13 +3,16 @@ package edu.sjsu.stratagem;
 import edu.sjsu.stratagem.exception.StratagemTypecheckException;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * A variable environment for typechecking the program.
  */
 public class TypeEnvironment {
     private Map<String,Type> env = new HashMap<>();
+    private Set<TypeVar> typeVars = new HashSet<>();
     private TypeEnvironment outerEnv;
 
     /**
@@ -65,4 +68,23 @@ public class TypeEnvironment {
         }
         env.put(key,v);
     }
-}
+
+    /**
+     * Makes the type variable stand for one unknown type in the local scope,
+     * as it does in the body of a function that is generic in it.
+     */
+    public void bindTypeVar(TypeVar typeVar) {
+        typeVars.add(typeVar);
+    }
+
+    /**
+     * Whether the type variable stands for one unknown type in this scope or any outer one.
+     * Type variables that are not bound make the types they are in generic.
+     */
+    public boolean bindsTypeVar(TypeVar typeVar) {
+        if (typeVars.contains(typeVar)) {
+            return true;
+        }
+        return outerEnv != null && outerEnv.bindsTypeVar(typeVar);
+    }
+}
\ No newline at end of file
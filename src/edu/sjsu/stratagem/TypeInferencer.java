@@ -0,0 +1,583 @@
+package edu.sjsu.stratagem;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Gives types to the parameters and let bindings that have no type annotation, so that
+ * typechecking inserts casts only where the program really mixes types.
+ * Runs before typecheck(), which gives type ? to whatever is left without a type.
+ *
+ * Each unannotated variable starts as an unknown, and the uses of the program's values
+ * are solved for the unknowns by unification: fn(n) { n * 2 } gets n: Int, and the
+ * let rec in let rec f = fn(n) { if (n == 0) { 1 } else { n * f(n - 1) } } gets Int -> Int.
+ *
+ * A value of type ? can be anything, so an unknown that a value of type ? flows into,
+ * or whose uses conflict, is given type ?. A value that flows into ? can be used in any
+ * way, so a function that does keeps ? for its parameters, and a reference keeps ? for its
+ * contents. An unknown that nothing constrains is given type ? as well. The types found
+ * are then the ones the program was already using at runtime, and no cast can fail
+ * where the program would not have failed without them.
+ *
+ * Type variables are known types like Int, but each use of a variable or function whose
+ * type is generic in them gets new unknowns in their place, as typecheck() instantiates it.
+ */
+class TypeInferencer {
+    private static final Term ANY = new PrimTerm(AnyType.singleton);
+    private static final Term INT = new PrimTerm(IntType.singleton);
+    private static final Term BOOL = new PrimTerm(BoolType.singleton);
+    private static final Term UNIT = new PrimTerm(UnitType.singleton);
+
+    private List<Runnable> solutions = new ArrayList<>();
+    private int unannotatedCount;
+    private int inferredCount;
+
+    /**
+     * Gives types to the unannotated variables of the program.
+     */
+    void infer(Expression e) {
+        infer(e, null);
+        for (Runnable solution : solutions) {
+            solution.run();
+        }
+        solutions.clear();
+    }
+
+    /**
+     * Reports how many variables were given a type other than ?.
+     */
+    String getReport() {
+        return "Types inferred: " + inferredCount + " of " + unannotatedCount;
+    }
+
+    private Term infer(Expression e, Bindings env) {
+        if (e instanceof ValueExpr) {
+            return termOf(((ValueExpr) e).getValue().getType());
+        }
+        if (e instanceof VarExpr) {
+            Term t = Bindings.lookup(env, ((VarExpr) e).getVarName());
+            return t != null ? instantiate(t, env) : ANY;
+        }
+        if (e instanceof BinOpExpr) {
+            BinOpExpr binOp = (BinOpExpr) e;
+            Term left = infer(binOp.getLeft(), env);
+            Term right = infer(binOp.getRight(), env);
+            switch (binOp.getOp()) {
+            case EQ:
+            case NE:
+                // Equality casts neither operand, so ? on one side says nothing about the other.
+                if (resolve(left) != ANY && resolve(right) != ANY) {
+                    unify(left, right);
+                }
+                return BOOL;
+            case GT:
+            case GE:
+            case LT:
+            case LE:
+                flow(left, INT);
+                flow(right, INT);
+                return BOOL;
+            default:
+                flow(left, INT);
+                flow(right, INT);
+                return INT;
+            }
+        }
+        if (e instanceof IfExpr) {
+            IfExpr ifExpr = (IfExpr) e;
+            flow(infer(ifExpr.getCondition(), env), BOOL);
+            Var result = new Var();
+            flow(infer(ifExpr.getThen(), env), result);
+            flow(infer(ifExpr.getElse(), env), result);
+            return result;
+        }
+        if (e instanceof WhileExpr) {
+            WhileExpr loop = (WhileExpr) e;
+            flow(infer(loop.getCondition(), env), BOOL);
+            infer(loop.getBody(), env);
+            return UNIT;
+        }
+        if (e instanceof SeqExpr) {
+            Term last = UNIT;
+            for (Expression sub : ((SeqExpr) e).getExprs()) {
+                last = infer(sub, env);
+            }
+            return last;
+        }
+        if (e instanceof FunctionDeclExpr) {
+            return inferFunction((FunctionDeclExpr) e, env);
+        }
+        if (e instanceof FunctionAppExpr) {
+            FunctionAppExpr app = (FunctionAppExpr) e;
+            Term callee = instantiate(infer(app.getClosureExpr(), env), env);
+            Expression[] args = app.getArgs();
+            Term[] argTerms = new Term[args.length];
+            for (int i = 0; i < args.length; i++) {
+                argTerms[i] = infer(args[i], env);
+            }
+
+            // A function of type ? is called with whatever it is given.
+            if (resolve(callee) == ANY) {
+                for (Term arg : argTerms) {
+                    open(arg);
+                }
+                return ANY;
+            }
+            Var result = new Var();
+            flow(callee, new FnTerm(argTerms, result));
+            return result;
+        }
+        if (e instanceof LetExpr) {
+            LetExpr let = (LetExpr) e;
+            Term value = infer(let.getValueExpr(), env);
+            Term var = let.getVarType() != null ? termOf(let.getVarType()) : unknown(let::setVarType);
+            flow(value, var);
+            return infer(let.getBody(), new Bindings(let.getVarName(), var, env));
+        }
+        if (e instanceof LetRecExpr) {
+            LetRecExpr letRec = (LetRecExpr) e;
+            Term var;
+            if (letRec.getVarType() != null) {
+                var = termOf(letRec.getVarType());
+            } else {
+                // Without a type, the function sees itself as returning ?, so only give it a function type.
+                var = unknown(type -> {
+                    if (type instanceof ClosureType) {
+                        letRec.setVarType(type);
+                    }
+                });
+            }
+            Bindings inner = new Bindings(letRec.getVarName(), var, env);
+            flow(infer(letRec.getValueExpr(), inner), var);
+            return infer(letRec.getBody(), inner);
+        }
+        if (e instanceof RefExpr) {
+            // The contents are an unknown of their own, so that writes of other types can conflict with them.
+            Var cell = new Var();
+            flow(infer(((RefExpr) e).getValueExpr(), env), cell);
+            return new RefTerm(cell);
+        }
+        if (e instanceof DerefExpr) {
+            Term ref = infer(((DerefExpr) e).getRefExpr(), env);
+            if (resolve(ref) == ANY) {
+                return ANY;
+            }
+            Var cell = new Var();
+            unify(ref, new RefTerm(cell));
+            return cell;
+        }
+        if (e instanceof AssignExpr) {
+            AssignExpr assign = (AssignExpr) e;
+            Term ref = infer(assign.getRefExpr(), env);
+            Term value = infer(assign.getValueExpr(), env);
+            if (resolve(ref) == ANY) {
+                open(value);
+                return new RefTerm(ANY);
+            }
+            Var cell = new Var();
+            unify(ref, new RefTerm(cell));
+            flow(value, cell);
+            return ref;
+        }
+        if (e instanceof CastExpr) {
+            CastExpr cast = (CastExpr) e;
+            Term target = termOf(cast.getTarget());
+            flow(infer(cast.getBody(), env), target);
+            return target;
+        }
+
+        // Anything else, such as print(), uses its operands in ways that do not depend on their types.
+        e.mapSubexpressions(sub -> {
+            infer(sub, env);
+            return sub;
+        });
+        return e instanceof PrintExpr ? UNIT : ANY;
+    }
+
+    private Term inferFunction(FunctionDeclExpr function, Bindings env) {
+        String[] paramNames = function.getParamNames();
+        Type[] paramTypes = function.getParamTypes();
+        Term[] params = new Term[paramNames.length];
+        Bindings inner = env;
+        for (int i = 0; i < params.length; i++) {
+            int index = i;
+            params[i] = paramTypes[i] != null ? termOf(paramTypes[i])
+                                              : unknown(type -> function.setParamType(index, type));
+            inner = new Bindings(paramNames[i], params[i], inner);
+
+            // The type variables the function is generic in are not instantiated within its body.
+            if (paramTypes[i] != null) {
+                for (TypeVar typeVar : Instantiation.typeVarsIn(paramTypes[i])) {
+                    if (!Bindings.bindsTypeVar(inner, typeVar)) {
+                        inner = new Bindings(typeVar.toString(), termOf(typeVar), inner);
+                    }
+                }
+            }
+        }
+        return new FnTerm(params, infer(function.getBody(), inner));
+    }
+
+    /**
+     * A copy of the term with new unknowns for the type variables it is generic in,
+     * so that each use of a generic function solves for them on its own.
+     */
+    private static Term instantiate(Term t, Bindings env) {
+        return isGeneric(t, env) ? copy(t, env, new HashMap<>()) : t;
+    }
+
+    private static boolean isGeneric(Term t, Bindings env) {
+        t = resolve(t);
+        if (t instanceof PrimTerm) {
+            Type type = ((PrimTerm) t).type;
+            return type instanceof TypeVar && !Bindings.bindsTypeVar(env, (TypeVar) type);
+        }
+        if (t instanceof FnTerm) {
+            FnTerm fn = (FnTerm) t;
+            for (Term param : fn.params) {
+                if (isGeneric(param, env)) {
+                    return true;
+                }
+            }
+            return isGeneric(fn.result, env);
+        }
+        return t instanceof RefTerm && isGeneric(((RefTerm) t).cell, env);
+    }
+
+    private static Term copy(Term t, Bindings env, Map<TypeVar, Var> unknowns) {
+        // The parts that are not generic are shared, so that they are still solved with the original.
+        if (!isGeneric(t, env)) {
+            return t;
+        }
+        t = resolve(t);
+        if (t instanceof FnTerm) {
+            FnTerm fn = (FnTerm) t;
+            Term[] params = new Term[fn.params.length];
+            for (int i = 0; i < params.length; i++) {
+                params[i] = copy(fn.params[i], env, unknowns);
+            }
+            return new FnTerm(params, copy(fn.result, env, unknowns));
+        }
+        if (t instanceof RefTerm) {
+            return new RefTerm(copy(((RefTerm) t).cell, env, unknowns));
+        }
+        return unknowns.computeIfAbsent((TypeVar) ((PrimTerm) t).type, typeVar -> new Var());
+    }
+
+    /**
+     * A new unknown for an unannotated variable, whose type is given to the setter once solved.
+     */
+    private Var unknown(Consumer<Type> setter) {
+        Var var = new Var();
+        unannotatedCount++;
+        solutions.add(() -> {
+            Type type = typeOf(var);
+            if (type != AnyType.singleton) {
+                inferredCount++;
+            }
+            setter.accept(type);
+        });
+        return var;
+    }
+
+    /**
+     * Records that values of the source term are used where the target term is expected.
+     */
+    private void flow(Term source, Term target) {
+        Term s = resolve(source);
+        Term t = resolve(target);
+        if (t == ANY) {
+            open(source);
+        } else if (s == ANY) {
+            makeAny(target);
+        } else if (s instanceof FnTerm && t instanceof FnTerm
+                && ((FnTerm) s).params.length == ((FnTerm) t).params.length) {
+            FnTerm sourceFn = (FnTerm) s;
+            FnTerm targetFn = (FnTerm) t;
+            for (int i = 0; i < sourceFn.params.length; i++) {
+                flow(targetFn.params[i], sourceFn.params[i]);
+            }
+            flow(sourceFn.result, targetFn.result);
+        } else {
+            unify(source, target);
+        }
+    }
+
+    /**
+     * Records that the two terms must be the same type, and returns whether they can be.
+     */
+    private boolean unify(Term a, Term b) {
+        a = find(a);
+        b = find(b);
+        if (a == b) {
+            return true;
+        }
+        if (a instanceof Var && b instanceof Var) {
+            Var v = (Var) a;
+            Var w = (Var) b;
+            boolean wasOpen = v.open;
+            w.parent = v;
+            v.open |= w.open;
+            if (w.bound != null) {
+                bind(v, w.bound);
+            }
+            if (!wasOpen && v.open && v.bound != null) {
+                open(v.bound);
+            }
+            return true;
+        }
+        if (a instanceof Var) {
+            bind((Var) a, b);
+            return true;
+        }
+        if (b instanceof Var) {
+            bind((Var) b, a);
+            return true;
+        }
+        if (a == ANY || b == ANY) {
+            Term other = a == ANY ? b : a;
+            makeAny(other);
+            open(other);
+            return !(other instanceof PrimTerm);
+        }
+        if (a instanceof FnTerm && b instanceof FnTerm) {
+            FnTerm fa = (FnTerm) a;
+            FnTerm fb = (FnTerm) b;
+            if (fa.params.length != fb.params.length) {
+                return false;
+            }
+            boolean unified = unify(fa.result, fb.result);
+            for (int i = 0; i < fa.params.length; i++) {
+                unified &= unify(fa.params[i], fb.params[i]);
+            }
+            return unified;
+        }
+        if (a instanceof RefTerm && b instanceof RefTerm) {
+            return unify(((RefTerm) a).cell, ((RefTerm) b).cell);
+        }
+        return a instanceof PrimTerm && b instanceof PrimTerm && ((PrimTerm) a).type == ((PrimTerm) b).type;
+    }
+
+    private void bind(Var v, Term t) {
+        if (v.bound == null) {
+            if (occursIn(v, t)) {
+                // A value that is applied to itself, say, has no type but ?.
+                v.bound = ANY;
+                v.open = true;
+                makeAny(t);
+                open(t);
+                return;
+            }
+            v.bound = t;
+            if (v.open) {
+                open(t);
+            }
+        } else if (v.bound == ANY) {
+            makeAny(t);
+            open(t);
+        } else if (!unify(v.bound, t)) {
+            makeAny(v);
+            makeAny(t);
+            open(t);
+        }
+    }
+
+    /**
+     * Records that a value of type ? is used where the term is expected.
+     */
+    private void makeAny(Term t) {
+        t = find(t);
+        if (t instanceof Var) {
+            Var v = (Var) t;
+            if (v.bound == ANY) {
+                return;
+            }
+            Term old = v.bound;
+            v.bound = ANY;
+            v.open = true;
+            if (old != null) {
+                makeAny(old);
+                open(old);
+            }
+        } else if (t instanceof FnTerm) {
+            FnTerm fn = (FnTerm) t;
+            for (Term param : fn.params) {
+                open(param);
+            }
+            makeAny(fn.result);
+        } else if (t instanceof RefTerm) {
+            makeAny(((RefTerm) t).cell);
+        }
+    }
+
+    /**
+     * Records that values of the term are used where a value of type ? is expected.
+     */
+    private void open(Term t) {
+        t = find(t);
+        if (t instanceof Var) {
+            Var v = (Var) t;
+            if (v.open) {
+                return;
+            }
+            v.open = true;
+            if (v.bound != null) {
+                open(v.bound);
+            }
+        } else if (t instanceof FnTerm) {
+            FnTerm fn = (FnTerm) t;
+            for (Term param : fn.params) {
+                makeAny(param);
+            }
+            open(fn.result);
+        } else if (t instanceof RefTerm) {
+            makeAny(((RefTerm) t).cell);
+        }
+    }
+
+    private static boolean occursIn(Var v, Term t) {
+        t = find(t);
+        if (t == v) {
+            return true;
+        }
+        if (t instanceof Var) {
+            return ((Var) t).bound != null && occursIn(v, ((Var) t).bound);
+        }
+        if (t instanceof FnTerm) {
+            FnTerm fn = (FnTerm) t;
+            for (Term param : fn.params) {
+                if (occursIn(v, param)) {
+                    return true;
+                }
+            }
+            return occursIn(v, fn.result);
+        }
+        return t instanceof RefTerm && occursIn(v, ((RefTerm) t).cell);
+    }
+
+    private static Term find(Term t) {
+        while (t instanceof Var && ((Var) t).parent != null) {
+            t = ((Var) t).parent;
+        }
+        return t;
+    }
+
+    /**
+     * The term, seen through the unknowns solved so far.
+     */
+    private static Term resolve(Term t) {
+        t = find(t);
+        while (t instanceof Var && ((Var) t).bound != null) {
+            t = find(((Var) t).bound);
+        }
+        return t;
+    }
+
+    private static Type typeOf(Term t) {
+        t = resolve(t);
+        if (t instanceof FnTerm) {
+            FnTerm fn = (FnTerm) t;
+            Type[] params = new Type[fn.params.length];
+            for (int i = 0; i < params.length; i++) {
+                params[i] = typeOf(fn.params[i]);
+            }
+            return ClosureType.of(params, typeOf(fn.result));
+        }
+        if (t instanceof RefTerm) {
+            return RefType.of(typeOf(((RefTerm) t).cell));
+        }
+        return t instanceof PrimTerm ? ((PrimTerm) t).type : AnyType.singleton;
+    }
+
+    private static Term termOf(Type type) {
+        if (type instanceof ClosureType) {
+            ClosureType closureType = (ClosureType) type;
+            Term[] params = new Term[closureType.getArity()];
+            for (int i = 0; i < params.length; i++) {
+                params[i] = termOf(closureType.getArgType(i));
+            }
+            return new FnTerm(params, termOf(closureType.getReturnType()));
+        }
+        if (type instanceof RefType) {
+            return new RefTerm(termOf(((RefType) type).getCellType()));
+        }
+        if (type == AnyType.singleton) {
+            return ANY;
+        }
+        return new PrimTerm(type);
+    }
+
+    /**
+     * The types under inference, which may contain unknowns.
+     */
+    private static abstract class Term {}
+
+    private static class PrimTerm extends Term {
+        final Type type;
+
+        PrimTerm(Type type) {
+            this.type = type;
+        }
+    }
+
+    private static class FnTerm extends Term {
+        final Term[] params;
+        final Term result;
+
+        FnTerm(Term[] params, Term result) {
+            this.params = params;
+            this.result = result;
+        }
+    }
+
+    private static class RefTerm extends Term {
+        final Term cell;
+
+        RefTerm(Term cell) {
+            this.cell = cell;
+        }
+    }
+
+    /**
+     * An unknown. Unknowns found to be the same are merged into the one at the root,
+     * which holds the term they were found to be, and whether their values flow into ?.
+     */
+    private static class Var extends Term {
+        Var parent;
+        Term bound;
+        boolean open;
+    }
+
+    /**
+     * The terms of the variables in scope, and the type variables that stand for one type.
+     */
+    private static class Bindings {
+        final String name;
+        final Term term;
+        final Bindings next;
+
+        Bindings(String name, Term term, Bindings next) {
+            this.name = name;
+            this.term = term;
+            this.next = next;
+        }
+
+        static Term lookup(Bindings env, String name) {
+            for (; env != null; env = env.next) {
+                if (env.name.equals(name)) {
+                    return env.term;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Whether a function in scope is generic in the type variable, which is bound under its quoted name.
+         */
+        static boolean bindsTypeVar(Bindings env, TypeVar typeVar) {
+            return lookup(env, typeVar.toString()) != null;
+        }
+    }
+}
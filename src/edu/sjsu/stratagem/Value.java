@@ -1,10 +1,20 @@
 package edu.sjsu.stratagem;
 
+import edu.sjsu.stratagem.exception.StratagemCastException;
+import edu.sjsu.stratagem.exception.StratagemRuntimeException;
+
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Values in Stratagem.
  * Evaluating a Stratagem expression should return a Stratagem value.
  */
 public interface Value {
+    /**
+     * The runtime type of the value. Types are canonical, so this is a shared
+     * tag that casts can compare against without allocating anything.
+     */
     Type getType();
 }
 
@@ -13,6 +23,7 @@ public interface Value {
 
 /**
  * Boolean values.
+ * The interpreter only uses the two singletons, so it never allocates a boolean.
  */
 class BoolVal implements Value {
     public static final BoolVal trueSingleton = new BoolVal(true);
@@ -20,10 +31,14 @@ class BoolVal implements Value {
 
     private boolean boolVal;
 
-    public BoolVal(boolean b) {
+    private BoolVal(boolean b) {
         this.boolVal = b;
     }
 
+    public static BoolVal of(boolean b) {
+        return b ? trueSingleton : falseSingleton;
+    }
+
     public Type getType() {
         return BoolType.singleton;
     }
@@ -34,6 +49,9 @@ class BoolVal implements Value {
 
     @Override
     public boolean equals(Object that) {
+        if (this == that) {
+            return true;
+        }
         if (!(that instanceof BoolVal)) {
             return false;
         }
@@ -52,58 +70,249 @@ class BoolVal implements Value {
  * Note that a closure remembers its surrounding scope.
  */
 class ClosureVal implements Value {
-    private String paramName;
-    private Type paramType;
-    private Type returnType;
-    private Expression body;
+    private FunctionDeclExpr function;
+    private Value[] captured;
     private ValueEnvironment outerEnv;
+    private Coercion coercion;
+    private ClosureVal lastProxy;
 
     /**
-     * The environment is the environment where the function was created.
+     * A closure over the values of its free variables, copied when the function was created.
      * This design is what makes this expression a closure.
      */
-    public ClosureVal(String paramName, Type paramType, Type returnType, Expression body, ValueEnvironment outerEnv) {
-        this.paramName = paramName;
-        this.paramType = paramType;
-        this.returnType = returnType;
-        this.body = body;
+    public ClosureVal(FunctionDeclExpr function, Value[] captured) {
+        this.function = function;
+        this.captured = captured;
+    }
+
+    /**
+     * A closure over the whole environment where the function was created,
+     * for functions whose variables have not been resolved.
+     */
+    public ClosureVal(FunctionDeclExpr function, ValueEnvironment outerEnv) {
+        this.function = function;
         this.outerEnv = outerEnv;
     }
 
+    /**
+     * A proxy for a closure that has been cast to another function type,
+     * or with a null coercion, the closure without its proxy.
+     */
+    private ClosureVal(ClosureVal closure, Coercion coercion) {
+        this.function = closure.function;
+        this.captured = closure.captured;
+        this.outerEnv = closure.outerEnv;
+        this.coercion = coercion;
+    }
+
     public Type getType() {
-        return new ClosureType(paramType, returnType);
+        return coercion != null ? coercion.getTarget() : function.getRuntimeType();
+    }
+
+    FunctionDeclExpr getFunction() {
+        return function;
+    }
+
+    Value[] getCaptured() {
+        return captured;
+    }
+
+    /**
+     * Whether calls must go through apply(), so that the proxy can cast arguments and results.
+     */
+    boolean isProxy() {
+        return coercion != null;
+    }
+
+    /**
+     * The casts that a proxy makes on calls, or null if the closure is not a proxy.
+     */
+    Coercion getCoercion() {
+        return coercion;
+    }
+
+    /**
+     * Casts the closure to a function type consistent with its own.
+     * The result is a proxy for the underlying closure, never a proxy for a proxy.
+     */
+    ClosureVal castTo(ClosureType target) {
+        if (getType() == target) {
+            return this;
+        }
+        // Values often cross the same boundary repeatedly, as in self-application.
+        if (lastProxy != null && lastProxy.getType() == target) {
+            return lastProxy;
+        }
+
+        if (coercion == null) {
+            lastProxy = new ClosureVal(this, Coercion.of(function.getRuntimeType(), target));
+            return lastProxy;
+        }
+
+        ClosureType runtimeType = function.getRuntimeType();
+        Type[] paramTypes = runtimeType.getArgTypes();
+        Type[] argTypes = new Type[paramTypes.length];
+        boolean sameArgTypes = true;
+        for (int i = 0; i < argTypes.length; i++) {
+            argTypes[i] = Coercion.meet(target.getArgType(i), coercion.getArgTypes()[i]);
+            sameArgTypes &= argTypes[i] == paramTypes[i];
+        }
+        Type resultType = Coercion.meet(coercion.getResultType(), target.getReturnType());
+        if (target == runtimeType && sameArgTypes && resultType == runtimeType.getReturnType()) {
+            // Cast back to its own type, with nothing else left to check.
+            lastProxy = new ClosureVal(this, null);
+        } else {
+            lastProxy = new ClosureVal(this, new Coercion(target, argTypes, resultType, runtimeType.getReturnType()));
+        }
+        return lastProxy;
     }
 
     public String toString() {
         StringBuilder s = new StringBuilder("function(");
-        s.append(paramName).append(": ").append(paramType);
-        s.append("): ").append(returnType).append(" {...}");
+        String[] paramNames = function.getParamNames();
+        Type[] paramTypes = function.getParamTypes();
+        for (int i = 0; i < paramNames.length; i++) {
+            if (i > 0) {
+                s.append(", ");
+            }
+            s.append(paramNames[i]).append(": ").append(paramTypes[i]);
+        }
+        s.append("): ").append(function.getReturnType()).append(" {...}");
 
         return s.toString();
     }
 
     /**
-     * To apply a closure, first create a new local environment, with an outer scope
-     * of the environment where the function was created. Each parameter should
-     * be bound to its matching argument and added to the new local environment.
+     * Creates a frame for a call to the closure, which can see the captured values
+     * (or, if unresolved, the environment where the function was created).
+     * The caller puts the arguments in the first slots of the frame.
+     */
+    ValueEnvironment newFrame() {
+        return new ValueEnvironment(outerEnv, function.getFrameLayout(), captured);
+    }
+
+    /**
+     * Applies a closure of one parameter.
      */
     public Value apply(Value argVal) {
-        ValueEnvironment newEnv = new ValueEnvironment(outerEnv);
-        newEnv.createVar(paramName, argVal);
-        return body.evaluate(newEnv);
+        ValueEnvironment frame = newFrame();
+        frame.setSlot(0, argVal);
+        return call(frame);
+    }
+
+    /**
+     * Calls the closure with the arguments in a frame created by newFrame().
+     *
+     * If the body ends in a tail call, the call is made here rather than inside
+     * the body, so a chain of tail calls runs in constant Java stack space.
+     * The result casts of proxies in the chain are composed as it goes, so they
+     * take constant space too.
+     */
+    public Value call(ValueEnvironment frame) {
+        ClosureVal closure = this;
+        Coercion pendingResult = null;
+        while (true) {
+            if (closure.coercion != null) {
+                closure.coercion.coerceArguments(frame);
+                pendingResult = pendingResult == null ? closure.coercion
+                                                      : pendingResult.thenResult(closure.coercion);
+            }
+
+            Value result = closure.function.invoke(frame);
+
+            if (frame.getTailCallee() == null) {
+                return pendingResult == null ? result : pendingResult.coerceResult(result);
+            }
+            closure = frame.getTailCallee();
+            frame = frame.getTailCallFrame();
+        }
+    }
+
+    /**
+     * Calls a closure whose result is statically an Int.
+     * Closures with an unboxed entry return the int directly. Proxies cast their result, so
+     * calls through them, like calls to functions without one, box the result and unbox it here.
+     */
+    int callInt(ValueEnvironment frame) {
+        if (coercion == null && function.hasUnboxedEntry() && function.getReturnType() == IntType.singleton) {
+            return function.invokeInt(frame);
+        }
+        Value v = call(frame);
+        if (!(v instanceof IntVal)) {
+            throw new StratagemCastException("Expected int, but got " + v);
+        }
+        return ((IntVal) v).toInt();
+    }
+
+    /**
+     * Calls a closure whose result is statically a Bool, as callInt() does for Ints.
+     */
+    boolean callBoolean(ValueEnvironment frame) {
+        if (coercion == null && function.hasUnboxedEntry() && function.getReturnType() == BoolType.singleton) {
+            return function.invokeBoolean(frame);
+        }
+        Value v = call(frame);
+        if (!(v instanceof BoolVal)) {
+            throw new StratagemRuntimeException("Expected boolean, but got " + v);
+        }
+        return ((BoolVal) v).toBoolean();
     }
 }
 
 /**
  * Numbers.  Only integers are supported.
+ *
+ * Small ints are shared, so arithmetic on them does not allocate. The range is set by
+ * the stratagem.intcache.low and stratagem.intcache.high properties.
  */
 class IntVal implements Value {
+    private static final int DEFAULT_CACHE_LOW = -128;
+    private static final int DEFAULT_CACHE_HIGH = 1023;
+
+    // The cache is filled up front, so a wide range would take the memory for all of it at startup.
+    static final int MAX_CACHE_SIZE = 1 << 16;
+
+    static final int cacheLow;
+    static final int cacheHigh;
+    private static final IntVal[] cache;
+
+    static {
+        int low = Integer.getInteger("stratagem.intcache.low", DEFAULT_CACHE_LOW);
+        int high = Integer.getInteger("stratagem.intcache.high", DEFAULT_CACHE_HIGH);
+        if (low > high) {
+            low = DEFAULT_CACHE_LOW;
+            high = DEFAULT_CACHE_HIGH;
+        }
+        cacheLow = low;
+        cacheHigh = clampCacheHigh(low, high);
+        cache = new IntVal[cacheHigh - cacheLow + 1];
+        for (int k = 0; k < cache.length; k++) {
+            cache[k] = new IntVal(cacheLow + k);
+        }
+    }
+
+    /**
+     * The highest int to cache from low up to high, lowered to keep the cache within MAX_CACHE_SIZE.
+     */
+    static int clampCacheHigh(int low, int high) {
+        // The size of a range that spans most ints does not fit in an int.
+        long size = (long) high - low + 1;
+        return size > MAX_CACHE_SIZE ? low + MAX_CACHE_SIZE - 1 : high;
+    }
+
     private int i;
 
-    public IntVal(int i) {
+    private IntVal(int i) {
         this.i = i;
     }
 
+    public static IntVal of(int i) {
+        if (i >= cacheLow && i <= cacheHigh) {
+            return cache[i - cacheLow];
+        }
+        return new IntVal(i);
+    }
+
     public Type getType() {
         return IntType.singleton;
     }
@@ -114,6 +323,9 @@ class IntVal implements Value {
 
     @Override
     public boolean equals(Object that) {
+        if (this == that) {
+            return true;
+        }
         if (!(that instanceof IntVal)) {
             return false;
         }
@@ -132,29 +344,106 @@ class IntVal implements Value {
  */
 class RefVal implements Value {
     private Value value;
+    private Type cellType;
+    private RefType type;
 
     public RefVal(Value value) {
+        this(value, value.getType());
+    }
+
+    /**
+     * Creates a reference whose cell holds values of the given type. Casts on the
+     * reference only ever make the cell type more precise, so a reference whose static
+     * type has no ? in it always has exactly that cell type at runtime.
+     */
+    public RefVal(Value value, Type cellType) {
         assert(value != null);
 
         this.value = value;
+        this.cellType = cellType;
+        this.type = RefType.of(cellType);
+    }
+
+    /**
+     * For subclasses that hold their contents themselves.
+     */
+    protected RefVal(Type cellType) {
+        this.cellType = cellType;
+        this.type = RefType.of(cellType);
     }
 
     public Value dereference() {
         return value;
     }
 
+    /**
+     * Reads a reference whose cell type is Int.
+     */
+    int dereferenceInt() {
+        return ((IntVal) value).toInt();
+    }
+
+    /**
+     * Reads a reference whose cell type is Bool.
+     */
+    boolean dereferenceBoolean() {
+        return ((BoolVal) value).toBoolean();
+    }
+
+    /**
+     * Writes a value that is already known to belong to the cell type.
+     */
     public void assign(Value value) {
         assert(value != null);
 
-        Type oldType = this.value.getType();
-        Type newType = value.getType();
-        assert(oldType.equals(newType));
-
         this.value = value;
     }
 
+    /**
+     * Writes a value through a reference whose static cell type is imprecise, checking
+     * it against the cell type first.
+     */
+    public void assignChecked(Value value) {
+        this.value = CastExpr.cast(value, cellType);
+    }
+
+    /**
+     * Writes an int through a reference whose cell type is Int.
+     */
+    void assignInt(int i) {
+        this.value = IntVal.of(i);
+    }
+
+    /**
+     * Writes a boolean through a reference whose cell type is Bool.
+     */
+    void assignBoolean(boolean b) {
+        this.value = BoolVal.of(b);
+    }
+
+    /**
+     * Casts the reference by tightening its cell type in place to the meet of the old cell
+     * type and the target's, casting the contents to match.
+     */
+    public RefVal castTo(RefType target) {
+        Type meet = cellType.meetWith(target.getCellType());
+        if (meet == null) {
+            throw new StratagemCastException("Cannot cast " + this + " to " + target);
+        }
+        if (meet != cellType) {
+            value = CastExpr.cast(value, meet);
+            cellType = meet;
+            type = RefType.of(meet);
+        }
+        return this;
+    }
+
+    public Type getCellType() {
+        return cellType;
+    }
+
     public Type getType() {
-        return new RefType(value.getType());
+        return type;
     }
 
     @Override
@@ -168,22 +457,113 @@ class RefVal implements Value {
     }
 }
 
+/**
+ * A reference whose cell type is Int, which holds its contents unboxed.
+ * Int has no ? in it, so casts never change the cell type, and every value written is an int.
+ */
+class IntRefVal extends RefVal {
+    private int contents;
+
+    IntRefVal(int contents) {
+        super(IntType.singleton);
+        this.contents = contents;
+    }
+
+    public Value dereference() {
+        return IntVal.of(contents);
+    }
+
+    int dereferenceInt() {
+        return contents;
+    }
+
+    public void assign(Value value) {
+        contents = ((IntVal) value).toInt();
+    }
+
+    public void assignChecked(Value value) {
+        assign(CastExpr.cast(value, IntType.singleton));
+    }
+
+    void assignInt(int i) {
+        contents = i;
+    }
+
+    @Override
+    public String toString() {
+        return "ref " + contents;
+    }
+}
+
+/**
+ * A reference whose cell type is Bool, which holds its contents unboxed.
+ */
+class BoolRefVal extends RefVal {
+    private boolean contents;
+
+    BoolRefVal(boolean contents) {
+        super(BoolType.singleton);
+        this.contents = contents;
+    }
+
+    public Value dereference() {
+        return BoolVal.of(contents);
+    }
+
+    boolean dereferenceBoolean() {
+        return contents;
+    }
+
+    public void assign(Value value) {
+        contents = ((BoolVal) value).toBoolean();
+    }
+
+    public void assignChecked(Value value) {
+        assign(CastExpr.cast(value, BoolType.singleton));
+    }
+
+    void assignBoolean(boolean b) {
+        contents = b;
+    }
+
+    @Override
+    public String toString() {
+        return "ref " + contents;
+    }
+}
+
 /**
  * Strings.
+ * Strings only come from literals, and equal literals share one interned value made by intern(),
+ * so comparing strings is mostly a comparison of references.
  */
 class StringVal implements Value {
+    private static final Map<String, StringVal> interned = new HashMap<>();
+
     private String s;
 
-    public StringVal(String s) {
+    private StringVal(String s) {
         this.s = s;
     }
 
+    public static StringVal intern(String s) {
+        StringVal v = interned.get(s);
+        if (v == null) {
+            v = new StringVal(s);
+            interned.put(s, v);
+        }
+        return v;
+    }
+
     public Type getType() {
         return StringType.singleton;
     }
 
     @Override
     public boolean equals(Object that) {
+        if (this == that) {
+            return true;
+        }
         if (!(that instanceof StringVal)) {
             return false;
         }
@@ -200,6 +580,8 @@ class StringVal implements Value {
 class UnitVal implements Value {
     public static final UnitVal singleton = new UnitVal();
 
+    private UnitVal() {}
+
     public Type getType() {
         return UnitType.singleton;
     }
@@ -2,26 +2,95 @@ package edu.sjsu.stratagem;
 
 import edu.sjsu.stratagem.exception.StratagemRuntimeException;
 
-import java.util.Map;
-import java.util.HashMap;
-
 /**
  * A variable environment for the runtime of the program.
+ *
+ * Each environment is a single array-backed frame. Variables that were
+ * resolved ahead of time are accessed by slot, or through the flat array of
+ * values captured by the running closure; the name-based methods remain for
+ * environments built up by hand.
  */
 public class ValueEnvironment {
-    private Map<String,Value> env = new HashMap<>();
+    private static final String[] emptyLayout = new String[0];
+    private static final Value[] noCaptures = new Value[0];
+
+    private String[] names;
+    private Value[] slots;
+    private int size;
+    private Value[] captured;
     private ValueEnvironment outerEnv;
+    private ClosureVal tailCallee;
+    private ValueEnvironment tailCallFrame;
 
     /**
      * Constructor for global environment
      */
-    public ValueEnvironment() {}
+    public ValueEnvironment() {
+        this(null);
+    }
 
     /**
      * Constructor for local environment of a function
      */
     public ValueEnvironment(ValueEnvironment outerEnv) {
+        this(outerEnv, emptyLayout, noCaptures);
+    }
+
+    /**
+     * Constructor for a frame with a fixed layout, as computed by a Scope.
+     * Neither the layout nor the captured values are copied.
+     * Frames of resolved closures have no outer environment.
+     */
+    public ValueEnvironment(ValueEnvironment outerEnv, String[] layout, Value[] captured) {
         this.outerEnv = outerEnv;
+        this.names = layout;
+        this.slots = new Value[layout.length];
+        this.size = layout.length;
+        this.captured = captured;
+    }
+
+    /**
+     * Gets the value of a slot in this frame.
+     */
+    public Value getSlot(int slot) {
+        return slots[slot];
+    }
+
+    /**
+     * Sets the value of a slot in this frame.
+     */
+    public void setSlot(int slot, Value v) {
+        slots[slot] = v;
+    }
+
+    /**
+     * Gets a value captured by the closure this frame belongs to.
+     */
+    public Value getCaptured(int index) {
+        return captured[index];
+    }
+
+    /**
+     * Records a call in tail position, to be made by the caller of this frame
+     * once evaluation of the function body finishes. The callee's frame already
+     * holds the arguments.
+     * The returned value is a placeholder that is never observed.
+     */
+    public Value requestTailCall(ClosureVal callee, ValueEnvironment calleeFrame) {
+        tailCallee = callee;
+        tailCallFrame = calleeFrame;
+        return null;
+    }
+
+    /**
+     * The closure to call in tail position, or null if there is none.
+     */
+    public ClosureVal getTailCallee() {
+        return tailCallee;
+    }
+
+    public ValueEnvironment getTailCallFrame() {
+        return tailCallFrame;
     }
 
     /**
@@ -32,8 +101,9 @@ public class ValueEnvironment {
      * null is returned (similar to how JS returns undefined).
      */
     public Value resolveVar(String varName) {
-        if (env.containsKey(varName)) {
-            return env.get(varName);
+        int slot = indexOf(varName);
+        if (slot >= 0) {
+            return slots[slot];
         } else if (outerEnv == null) {
             throw new StratagemRuntimeException("Unbound variable: " + varName);
         } else {
@@ -47,8 +117,11 @@ public class ValueEnvironment {
      * or any of the function's outer scopes, the var is stored in the global scope.
      */
     public void updateVar(String key, Value v) {
-        if (env.containsKey(key) || outerEnv == null) {
-            env.put(key, v);
+        int slot = indexOf(key);
+        if (slot >= 0) {
+            slots[slot] = v;
+        } else if (outerEnv == null) {
+            append(key, v);
         } else {
             outerEnv.updateVar(key,v);
         }
@@ -60,9 +133,33 @@ public class ValueEnvironment {
      * a StratagemException is thrown.
      */
     public void createVar(String key, Value v) {
-        if (env.containsKey(key)) {
+        if (indexOf(key) >= 0) {
             throw new StratagemRuntimeException("Redeclaring existing var " + key);
         }
-        env.put(key,v);
+        append(key, v);
+    }
+
+    private int indexOf(String varName) {
+        for (int i = size - 1; i >= 0; i--) {
+            if (names[i].equals(varName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void append(String key, Value v) {
+        if (size == slots.length) {
+            int capacity = Math.max(4, size * 2);
+            String[] newNames = new String[capacity];
+            Value[] newSlots = new Value[capacity];
+            System.arraycopy(names, 0, newNames, 0, size);
+            System.arraycopy(slots, 0, newSlots, 0, size);
+            names = newNames;
+            slots = newSlots;
+        }
+        names[size] = key;
+        slots[size] = v;
+        size++;
     }
 }
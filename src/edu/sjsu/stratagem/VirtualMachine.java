@@ -0,0 +1,365 @@
+package edu.sjsu.stratagem;
+
+import edu.sjsu.stratagem.exception.StratagemCastException;
+import edu.sjsu.stratagem.exception.StratagemRuntimeException;
+
+import java.util.Arrays;
+
+/**
+ * Executes programs compiled by the VmCompiler.
+ *
+ * Instructions operate on an operand stack shared by all frames. Calls push a frame
+ * instead of recursing in Java, so deep recursion is only limited by the heap.
+ */
+final class VirtualMachine {
+    // Opcodes. Operands follow the opcode in the code array.
+    static final int CONST = 0;             // index: push constants[index]
+    static final int LOAD_LOCAL = 1;        // slot: push the frame's slot
+    static final int LOAD_CAPTURED = 2;     // index: push the closure's captured value
+    static final int POP = 3;
+    static final int EVAL = 4;              // index: push constants[index].evaluate(frame)
+    static final int CAST = 5;              // index: check the top of the stack with the CastExpr
+    static final int BINOP = 6;             // index: apply the BinOpExpr to the top two values
+    static final int ADD = 7;
+    static final int SUB = 8;
+    static final int MUL = 9;
+    static final int DIV = 10;
+    static final int MOD = 11;
+    static final int EQ = 12;
+    static final int NE = 13;
+    static final int LT = 14;
+    static final int GE = 15;
+    static final int GT = 16;
+    static final int LE = 17;
+    static final int ADD_CONST = 18;        // n: add n to the int on top of the stack
+    static final int LOCAL_ADD_CONST = 19;  // slot, n: push the int in the slot plus n
+    static final int JUMP = 20;             // target
+    static final int JUMP_IF_FALSE = 21;    // target
+    static final int JUMP_IF_FALSE_CAST = 22;   // target: as above, but a non-boolean is a failed cast
+    static final int JUMP_UNLESS_EQ = 23;   // target: compare the top two ints, branch if false
+    static final int JUMP_UNLESS_NE = 24;
+    static final int JUMP_UNLESS_LT = 25;
+    static final int JUMP_UNLESS_GE = 26;
+    static final int JUMP_UNLESS_GT = 27;
+    static final int JUMP_UNLESS_LE = 28;
+    static final int CLOSURE = 29;          // index, n: create a closure over the top n values
+    static final int CALL = 30;             // n: call the closure below the top n values with them
+    static final int TAIL_CALL = 31;        // n
+    static final int RETURN = 32;
+    static final int PRINT = 33;
+    static final int REF = 34;              // index: create a reference with the RefExpr
+    static final int DEREF = 35;
+    static final int ASSIGN = 36;
+    static final int ASSIGN_CHECKED = 37;   // as above, but check the value against the cell type
+    static final int STORE_LOCAL = 38;      // slot: pop the top of the stack into the frame's slot
+    static final int BIND_SELF = 39;        // slot, index: patch the closure in the slot into its captured values
+
+    private VirtualMachine() {}
+
+    /**
+     * Runs a compiled program.
+     *
+     * Each frame keeps its local variables at the bottom of its part of the operand stack,
+     * starting at its base. The frames of the callers are kept in parallel arrays, so calls
+     * do not allocate anything, except when the stack or the frame arrays need to grow.
+     */
+    static Value run(VmFunction program) {
+        Value[] stack = new Value[Math.max(frameSize(program) * 2, 256)];
+        VmFunction[] frameFunctions = new VmFunction[64];
+        Value[][] frameCaptured = new Value[64][];
+        int[] frameBases = new int[64];
+        int[] framePcs = new int[64];
+        int fp = 0;
+
+        VmFunction function = program;
+        Value[] captured = new Value[0];
+        int[] code = program.code;
+        Object[] constants = program.constants;
+        int base = 0;
+        int sp = program.frameLayout.length;
+        int pc = 0;
+
+        while (true) {
+            switch (code[pc++]) {
+            case CONST:
+                stack[sp++] = (Value) constants[code[pc++]];
+                break;
+            case LOAD_LOCAL:
+                stack[sp++] = stack[base + code[pc++]];
+                break;
+            case STORE_LOCAL:
+                stack[base + code[pc++]] = stack[--sp];
+                stack[sp] = null;
+                break;
+            case BIND_SELF: {
+                Value closure = stack[base + code[pc++]];
+                LetRecExpr.bindSelf(closure, code[pc++]);
+                break;
+            }
+            case LOAD_CAPTURED:
+                stack[sp++] = captured[code[pc++]];
+                break;
+            case POP:
+                stack[--sp] = null;
+                break;
+            case EVAL: {
+                Expression e = (Expression) constants[code[pc++]];
+                stack[sp] = e.evaluate(frameEnvironment(function, captured, stack, base));
+                sp++;
+                break;
+            }
+            case CAST:
+                stack[sp - 1] = ((CastExpr) constants[code[pc++]]).check(stack[sp - 1]);
+                break;
+            case BINOP: {
+                Value v2 = stack[--sp];
+                stack[sp] = null;
+                stack[sp - 1] = ((BinOpExpr) constants[code[pc++]]).apply(stack[sp - 1], v2);
+                break;
+            }
+            case ADD: {
+                int j = intValue(stack[--sp]);
+                stack[sp - 1] = IntVal.of(intValue(stack[sp - 1]) + j);
+                break;
+            }
+            case SUB: {
+                int j = intValue(stack[--sp]);
+                stack[sp - 1] = IntVal.of(intValue(stack[sp - 1]) - j);
+                break;
+            }
+            case MUL: {
+                int j = intValue(stack[--sp]);
+                stack[sp - 1] = IntVal.of(intValue(stack[sp - 1]) * j);
+                break;
+            }
+            case DIV: {
+                int j = intValue(stack[--sp]);
+                stack[sp - 1] = IntVal.of(intValue(stack[sp - 1]) / j);
+                break;
+            }
+            case MOD: {
+                int j = intValue(stack[--sp]);
+                stack[sp - 1] = IntVal.of(intValue(stack[sp - 1]) % j);
+                break;
+            }
+            case EQ: {
+                int j = intValue(stack[--sp]);
+                stack[sp - 1] = BoolVal.of(intValue(stack[sp - 1]) == j);
+                break;
+            }
+            case NE: {
+                int j = intValue(stack[--sp]);
+                stack[sp - 1] = BoolVal.of(intValue(stack[sp - 1]) != j);
+                break;
+            }
+            case LT: {
+                int j = intValue(stack[--sp]);
+                stack[sp - 1] = BoolVal.of(intValue(stack[sp - 1]) < j);
+                break;
+            }
+            case GE: {
+                int j = intValue(stack[--sp]);
+                stack[sp - 1] = BoolVal.of(intValue(stack[sp - 1]) >= j);
+                break;
+            }
+            case GT: {
+                int j = intValue(stack[--sp]);
+                stack[sp - 1] = BoolVal.of(intValue(stack[sp - 1]) > j);
+                break;
+            }
+            case LE: {
+                int j = intValue(stack[--sp]);
+                stack[sp - 1] = BoolVal.of(intValue(stack[sp - 1]) <= j);
+                break;
+            }
+            case ADD_CONST:
+                stack[sp - 1] = IntVal.of(intValue(stack[sp - 1]) + code[pc++]);
+                break;
+            case LOCAL_ADD_CONST:
+                stack[sp++] = IntVal.of(intValue(stack[base + code[pc]]) + code[pc + 1]);
+                pc += 2;
+                break;
+            case JUMP:
+                pc = code[pc];
+                break;
+            case JUMP_IF_FALSE:
+                pc = isTrue(stack[--sp], false) ? pc + 1 : code[pc];
+                stack[sp] = null;
+                break;
+            case JUMP_IF_FALSE_CAST:
+                pc = isTrue(stack[--sp], true) ? pc + 1 : code[pc];
+                stack[sp] = null;
+                break;
+            case JUMP_UNLESS_EQ:
+            case JUMP_UNLESS_NE:
+            case JUMP_UNLESS_LT:
+            case JUMP_UNLESS_GE:
+            case JUMP_UNLESS_GT:
+            case JUMP_UNLESS_LE: {
+                int j = intValue(stack[--sp]);
+                int i = intValue(stack[--sp]);
+                stack[sp] = null;
+                stack[sp + 1] = null;
+                pc = compare(code[pc - 1], i, j) ? pc + 1 : code[pc];
+                break;
+            }
+            case CLOSURE: {
+                VmFunction closureFunction = (VmFunction) constants[code[pc++]];
+                int n = code[pc++];
+                Value[] closureCaptured = new Value[n];
+                sp -= n;
+                System.arraycopy(stack, sp, closureCaptured, 0, n);
+                Arrays.fill(stack, sp, sp + n, null);
+                stack[sp++] = new ClosureVal(closureFunction.declaration, closureCaptured);
+                break;
+            }
+            case CALL:
+            case TAIL_CALL: {
+                boolean tail = code[pc - 1] == TAIL_CALL;
+                int n = code[pc++];
+                int args = sp - n;
+                ClosureVal closure = (ClosureVal) stack[args - 1];
+
+                VmFunction callee = closure.isProxy() ? null : closure.getFunction().getInstructions();
+                if (callee == null) {
+                    // A proxy, or not compiled for the VM, so the tree-walker makes the call.
+                    // The result flows to the RETURN that follows a tail call.
+                    ValueEnvironment frame = closure.newFrame();
+                    for (int i = 0; i < n; i++) {
+                        frame.setSlot(i, stack[args + i]);
+                    }
+                    Arrays.fill(stack, args - 1, sp, null);
+                    sp = args - 1;
+                    stack[sp++] = closure.call(frame);
+                    break;
+                }
+
+                if (!tail) {
+                    // Otherwise nothing is left of the current frame, so the callee replaces it.
+                    if (fp == frameFunctions.length) {
+                        int length = fp * 2;
+                        frameFunctions = Arrays.copyOf(frameFunctions, length);
+                        frameCaptured = Arrays.copyOf(frameCaptured, length);
+                        frameBases = Arrays.copyOf(frameBases, length);
+                        framePcs = Arrays.copyOf(framePcs, length);
+                    }
+                    frameFunctions[fp] = function;
+                    frameCaptured[fp] = captured;
+                    frameBases[fp] = base;
+                    framePcs[fp] = pc;
+                    fp++;
+                    base = args - 1;
+                }
+                if (base + frameSize(callee) > stack.length) {
+                    stack = Arrays.copyOf(stack, Math.max(stack.length * 2, base + frameSize(callee)));
+                }
+
+                // The parameters are the first local variables.
+                System.arraycopy(stack, args, stack, base, n);
+                Arrays.fill(stack, base + n, sp, null);
+                sp = base + callee.frameLayout.length;
+                function = callee;
+                captured = closure.getCaptured();
+                code = callee.code;
+                constants = callee.constants;
+                pc = 0;
+                break;
+            }
+            case RETURN: {
+                Value result = stack[sp - 1];
+                if (fp == 0) {
+                    return result;
+                }
+                Arrays.fill(stack, base, sp, null);
+                sp = base;
+                stack[sp++] = result;
+
+                fp--;
+                function = frameFunctions[fp];
+                captured = frameCaptured[fp];
+                base = frameBases[fp];
+                pc = framePcs[fp];
+                frameFunctions[fp] = null;
+                frameCaptured[fp] = null;
+                code = function.code;
+                constants = function.constants;
+                break;
+            }
+            case PRINT:
+                System.out.println(stack[sp - 1].toString());
+                stack[sp - 1] = UnitVal.singleton;
+                break;
+            case REF:
+                stack[sp - 1] = ((RefExpr) constants[code[pc++]]).newRef(stack[sp - 1]);
+                break;
+            case DEREF:
+                stack[sp - 1] = ((RefVal) stack[sp - 1]).dereference();
+                break;
+            case ASSIGN: {
+                Value value = stack[--sp];
+                stack[sp] = null;
+                ((RefVal) stack[sp - 1]).assign(value);
+                break;
+            }
+            case ASSIGN_CHECKED: {
+                Value value = stack[--sp];
+                stack[sp] = null;
+                ((RefVal) stack[sp - 1]).assignChecked(value);
+                break;
+            }
+            default:
+                throw new StratagemRuntimeException("Unrecognized opcode: " + code[pc - 1]);
+            }
+        }
+    }
+
+    private static int frameSize(VmFunction function) {
+        return function.frameLayout.length + function.maxStack;
+    }
+
+    /**
+     * Copies a frame into a ValueEnvironment, for expressions that fall back to evaluate().
+     */
+    private static ValueEnvironment frameEnvironment(VmFunction function, Value[] captured, Value[] stack, int base) {
+        ValueEnvironment env = new ValueEnvironment(null, function.frameLayout, captured);
+        for (int i = 0; i < function.frameLayout.length; i++) {
+            env.setSlot(i, stack[base + i]);
+        }
+        return env;
+    }
+
+    private static boolean compare(int opcode, int i, int j) {
+        switch (opcode) {
+        case JUMP_UNLESS_EQ:
+            return i == j;
+        case JUMP_UNLESS_NE:
+            return i != j;
+        case JUMP_UNLESS_LT:
+            return i < j;
+        case JUMP_UNLESS_GE:
+            return i >= j;
+        case JUMP_UNLESS_GT:
+            return i > j;
+        default:
+            return i <= j;
+        }
+    }
+
+    private static int intValue(Value v) {
+        // As in IntBinOpExpr, untyped code can still pass something else to a "statically int" parameter.
+        if (!(v instanceof IntVal)) {
+            throw new StratagemCastException("Expected int, but got " + v);
+        }
+        return ((IntVal) v).toInt();
+    }
+
+    private static boolean isTrue(Value v, boolean fromCast) {
+        if (!(v instanceof BoolVal)) {
+            if (fromCast) {
+                throw new StratagemCastException("Cannot cast " + v + " to " + BoolType.singleton);
+            }
+            throw new StratagemRuntimeException("Expected boolean, but got " + v);
+        }
+        return ((BoolVal) v).toBoolean();
+    }
+}
@@ -0,0 +1,297 @@
+package edu.sjsu.stratagem;
+
+import edu.sjsu.stratagem.bytecode.CodeBuilder;
+import edu.sjsu.stratagem.exception.StratagemRuntimeException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static edu.sjsu.stratagem.VirtualMachine.*;
+
+/**
+ * Compiles resolved expressions to instructions for the VirtualMachine.
+ *
+ * Each expression emits its own instructions. Expressions without a translation fall
+ * back to the tree-walker: an EVAL instruction calls evaluate() on the node.
+ */
+final class VmCompiler {
+    private int[] code = new int[32];
+    private int length;
+    private List<Object> constants = new ArrayList<>();
+    private int stackDepth;
+    private int maxStack;
+
+    private VmCompiler() {}
+
+    /**
+     * Compiles a resolved program, whose top-level variables have the given frame layout.
+     */
+    static VmFunction compileProgram(Expression prog, String[] frameLayout) {
+        VmCompiler vm = new VmCompiler();
+        prog.emitInstructions(vm);
+        return vm.finish(null, frameLayout);
+    }
+
+    /**
+     * Compiles the body of a resolved function.
+     */
+    static VmFunction compileFunction(FunctionDeclExpr function) {
+        VmCompiler vm = new VmCompiler();
+        function.getBody().emitInstructions(vm);
+        VmFunction compiled = vm.finish(function, function.getFrameLayout());
+        function.setInstructions(compiled);
+        return compiled;
+    }
+
+    private VmFunction finish(FunctionDeclExpr function, String[] frameLayout) {
+        emit(RETURN, -1);
+        return new VmFunction(function, Arrays.copyOf(code, length), constants.toArray(), frameLayout, maxStack);
+    }
+
+    void emitFallback(Expression e) {
+        emit(EVAL, constant(e), 1);
+    }
+
+    void emitConstant(Value v) {
+        emit(CONST, constant(v), 1);
+    }
+
+    void emitLoadLocal(int slot) {
+        emit(LOAD_LOCAL, slot, 1);
+    }
+
+    void emitStoreLocal(int slot) {
+        emit(STORE_LOCAL, slot, -1);
+    }
+
+    /**
+     * Emits an instruction that makes the recursive closure in the slot see itself
+     * among its captured values.
+     */
+    void emitBindSelf(int slot, int index) {
+        emit(BIND_SELF, slot, index, 0);
+    }
+
+    void emitLoadCaptured(int index) {
+        emit(LOAD_CAPTURED, index, 1);
+    }
+
+    void emitPop() {
+        emit(POP, -1);
+    }
+
+    /**
+     * Emits an instruction that replaces the top of the stack with the result of
+     * a node-specific operation, such as a cast check.
+     */
+    void emitUnary(int opcode, Expression node) {
+        emit(opcode, constant(node), 0);
+    }
+
+    void emitUnary(int opcode) {
+        emit(opcode, 0);
+    }
+
+    void emitBinOp(BinOpExpr node, Expression e1, Expression e2) {
+        e1.emitInstructions(this);
+        e2.emitInstructions(this);
+        emit(BINOP, constant(node), -1);
+    }
+
+    void emitAssign(Expression refExpr, Expression valueExpr, boolean checked) {
+        refExpr.emitInstructions(this);
+        valueExpr.emitInstructions(this);
+        emit(checked ? ASSIGN_CHECKED : ASSIGN, -1);
+    }
+
+    /**
+     * Emits an operator on ints, given as the JVM instruction IntBinOpExpr uses for it.
+     * Adding or subtracting a constant becomes a single instruction, fused with the load
+     * of the other operand when that is a local variable.
+     */
+    void emitIntOperation(int jvmOpcode, Expression e1, Expression e2) {
+        if ((jvmOpcode == CodeBuilder.IADD || jvmOpcode == CodeBuilder.ISUB) && isIntConstant(e2)) {
+            int n = ((IntVal) ((ValueExpr) e2).getValue()).toInt();
+            if (jvmOpcode == CodeBuilder.ISUB) {
+                n = -n;
+            }
+            if (e1 instanceof LocalVarExpr) {
+                emit(LOCAL_ADD_CONST, ((LocalVarExpr) e1).getSlot(), n, 1);
+            } else {
+                e1.emitInstructions(this);
+                emit(ADD_CONST, n, 0);
+            }
+            return;
+        }
+
+        e1.emitInstructions(this);
+        e2.emitInstructions(this);
+        emit(intOpcode(jvmOpcode), -1);
+    }
+
+    /**
+     * Emits a comparison of ints fused with the branch of an if-expression.
+     * Returns the position of the branch target, to be patched with the else-branch.
+     */
+    int emitIntComparisonJump(int jvmOpcode, Expression e1, Expression e2) {
+        e1.emitInstructions(this);
+        e2.emitInstructions(this);
+        return emitJump(intOpcode(jvmOpcode) - EQ + JUMP_UNLESS_EQ, -2);
+    }
+
+    /**
+     * Emits a branch on the boolean on the stack, taken if it is false.
+     * Returns the position of the branch target.
+     */
+    int emitConditionJump(boolean fromCast) {
+        return emitJump(fromCast ? JUMP_IF_FALSE_CAST : JUMP_IF_FALSE, -1);
+    }
+
+    void emitIf(Expression cond, boolean condIsCast, Expression thn, Expression els) {
+        int elseJump;
+        if (condIsCast) {
+            cond.emitInstructions(this);
+            elseJump = emitConditionJump(true);
+        } else {
+            elseJump = cond.emitConditionInstructions(this);
+        }
+
+        thn.emitInstructions(this);
+        int endJump = emitJump(JUMP, 0);
+
+        // Only one of the branches leaves its value on the stack.
+        stackDepth--;
+        patch(elseJump);
+        els.emitInstructions(this);
+        patch(endJump);
+    }
+
+    void emitWhile(Expression cond, boolean condIsCast, Expression body) {
+        int top = length;
+        int endJump;
+        if (condIsCast) {
+            cond.emitInstructions(this);
+            endJump = emitConditionJump(true);
+        } else {
+            endJump = cond.emitConditionInstructions(this);
+        }
+
+        body.emitInstructions(this);
+        emitPop();
+        emit(JUMP, top, 0);
+        patch(endJump);
+        emitConstant(UnitVal.singleton);
+    }
+
+    void emitSeq(Expression[] exprs) {
+        if (exprs.length == 0) {
+            emitConstant(UnitVal.singleton);
+            return;
+        }
+        for (int i = 0; i < exprs.length - 1; i++) {
+            exprs[i].emitInstructions(this);
+            emitPop();
+        }
+        exprs[exprs.length - 1].emitInstructions(this);
+    }
+
+    void emitClosure(FunctionDeclExpr function, Expression[] captureSources) {
+        VmFunction compiled = compileFunction(function);
+        for (Expression source : captureSources) {
+            source.emitInstructions(this);
+        }
+        emit(CLOSURE, constant(compiled), captureSources.length, 1 - captureSources.length);
+    }
+
+    void emitCall(Expression closureExpr, Expression[] args, boolean tail) {
+        closureExpr.emitInstructions(this);
+        for (Expression arg : args) {
+            arg.emitInstructions(this);
+        }
+        emit(tail ? TAIL_CALL : CALL, args.length, -args.length);
+    }
+
+    private static boolean isIntConstant(Expression e) {
+        return e instanceof ValueExpr && ((ValueExpr) e).getValue() instanceof IntVal;
+    }
+
+    private static int intOpcode(int jvmOpcode) {
+        switch (jvmOpcode) {
+        case CodeBuilder.IADD:
+            return ADD;
+        case CodeBuilder.ISUB:
+            return SUB;
+        case CodeBuilder.IMUL:
+            return MUL;
+        case CodeBuilder.IDIV:
+            return DIV;
+        case CodeBuilder.IREM:
+            return MOD;
+        case CodeBuilder.IF_ICMPEQ:
+            return EQ;
+        case CodeBuilder.IF_ICMPNE:
+            return NE;
+        case CodeBuilder.IF_ICMPLT:
+            return LT;
+        case CodeBuilder.IF_ICMPGE:
+            return GE;
+        case CodeBuilder.IF_ICMPGT:
+            return GT;
+        case CodeBuilder.IF_ICMPLE:
+            return LE;
+        }
+        throw new StratagemRuntimeException("Unrecognized int operator: " + jvmOpcode);
+    }
+
+    private int constant(Object o) {
+        int index = constants.indexOf(o);
+        if (index < 0) {
+            index = constants.size();
+            constants.add(o);
+        }
+        return index;
+    }
+
+    private int emitJump(int opcode, int stackEffect) {
+        emit(opcode, -1, stackEffect);
+        return length - 1;
+    }
+
+    /**
+     * Makes a branch emitted earlier target the current position.
+     */
+    private void patch(int jumpTarget) {
+        code[jumpTarget] = length;
+    }
+
+    private void emit(int opcode, int stackEffect) {
+        append(opcode);
+        adjustStack(stackEffect);
+    }
+
+    private void emit(int opcode, int operand, int stackEffect) {
+        append(opcode);
+        append(operand);
+        adjustStack(stackEffect);
+    }
+
+    private void emit(int opcode, int operand1, int operand2, int stackEffect) {
+        append(opcode);
+        append(operand1);
+        append(operand2);
+        adjustStack(stackEffect);
+    }
+
+    private void append(int word) {
+        if (length == code.length) {
+            code = Arrays.copyOf(code, length * 2);
+        }
+        code[length++] = word;
+    }
+
+    private void adjustStack(int stackEffect) {
+        stackDepth += stackEffect;
+        maxStack = Math.max(maxStack, stackDepth);
+    }
+}
@@ -0,0 +1,37 @@
+package edu.sjsu.stratagem;
+
+/**
+ * The instructions of a function body (or of the whole program), compiled by the VmCompiler
+ * for the VirtualMachine.
+ */
+final class VmFunction {
+    /**
+     * The function this is the body of, or null for the program.
+     */
+    final FunctionDeclExpr declaration;
+
+    /**
+     * Opcodes, each followed by its operands.
+     */
+    final int[] code;
+
+    /**
+     * Values and nodes that instructions refer to by index.
+     */
+    final Object[] constants;
+
+    final String[] frameLayout;
+
+    /**
+     * The most values the instructions ever have on the operand stack at once.
+     */
+    final int maxStack;
+
+    VmFunction(FunctionDeclExpr declaration, int[] code, Object[] constants, String[] frameLayout, int maxStack) {
+        this.declaration = declaration;
+        this.code = code;
+        this.constants = constants;
+        this.frameLayout = frameLayout;
+        this.maxStack = maxStack;
+    }
+}
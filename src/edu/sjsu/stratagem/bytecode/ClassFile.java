@@ -0,0 +1,169 @@
+package edu.sjsu.stratagem.bytecode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal writer for JVM class files, capable of just what the JIT needs:
+ * a class with a superclass and some methods, without fields or attributes of its own.
+ *
+ * Classes are written in the Java 5 format (version 49), which is still loadable by
+ * current JVMs and is verified by type inference, so no stack map frames are needed.
+ */
+public class ClassFile {
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_FINAL = 0x0010;
+    public static final int ACC_SUPER = 0x0020;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private String name;
+    private String superName;
+    private List<byte[]> constants = new ArrayList<>();
+    private Map<String,Integer> constantIndices = new HashMap<>();
+    private List<CodeBuilder> methods = new ArrayList<>();
+
+    /**
+     * Names are internal names, e.g. "java/lang/Object".
+     */
+    public ClassFile(String name, String superName) {
+        this.name = name;
+        this.superName = superName;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Adds a method and returns the builder for its code.
+     */
+    public CodeBuilder addMethod(int access, String methodName, String descriptor) {
+        CodeBuilder code = new CodeBuilder(this, access, methodName, descriptor);
+        methods.add(code);
+        return code;
+    }
+
+    public byte[] toByteArray() {
+        // Resolve the names used by the class header and methods before writing the constant pool.
+        int thisIndex = classConstant(name);
+        int superIndex = classConstant(superName);
+        int codeIndex = utf8Constant("Code");
+        for (CodeBuilder method : methods) {
+            method.prepare();
+        }
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);   // minor version
+            out.writeShort(49);  // major version
+            out.writeShort(constants.size() + 1);
+            for (byte[] constant : constants) {
+                out.write(constant);
+            }
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisIndex);
+            out.writeShort(superIndex);
+            out.writeShort(0);  // interfaces
+            out.writeShort(0);  // fields
+            out.writeShort(methods.size());
+            for (CodeBuilder method : methods) {
+                method.write(out, codeIndex);
+            }
+            out.writeShort(0);  // attributes
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    int utf8Constant(String value) {
+        return constant("U" + value, out -> {
+            out.writeByte(CONSTANT_UTF8);
+            out.writeUTF(value);
+        });
+    }
+
+    int intConstant(int value) {
+        return constant("I" + value, out -> {
+            out.writeByte(CONSTANT_INTEGER);
+            out.writeInt(value);
+        });
+    }
+
+    int classConstant(String internalName) {
+        int utf8 = utf8Constant(internalName);
+        return constant("C" + internalName, out -> {
+            out.writeByte(CONSTANT_CLASS);
+            out.writeShort(utf8);
+        });
+    }
+
+    int fieldConstant(String owner, String fieldName, String descriptor) {
+        return memberConstant(CONSTANT_FIELDREF, owner, fieldName, descriptor);
+    }
+
+    int methodConstant(String owner, String methodName, String descriptor, boolean isInterface) {
+        int tag = isInterface ? CONSTANT_INTERFACE_METHODREF : CONSTANT_METHODREF;
+        return memberConstant(tag, owner, methodName, descriptor);
+    }
+
+    private int memberConstant(int tag, String owner, String memberName, String descriptor) {
+        int classIndex = classConstant(owner);
+        int nameIndex = utf8Constant(memberName);
+        int typeIndex = utf8Constant(descriptor);
+        int nameAndType = constant("N" + memberName + " " + descriptor, out -> {
+            out.writeByte(CONSTANT_NAME_AND_TYPE);
+            out.writeShort(nameIndex);
+            out.writeShort(typeIndex);
+        });
+        return constant("M" + tag + owner + "." + memberName + descriptor, out -> {
+            out.writeByte(tag);
+            out.writeShort(classIndex);
+            out.writeShort(nameAndType);
+        });
+    }
+
+    private interface ConstantWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private int constant(String key, ConstantWriter writer) {
+        Integer index = constantIndices.get(key);
+        if (index != null) {
+            return index;
+        }
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            writer.write(out);
+            out.flush();
+            constants.add(bytes.toByteArray());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        // Constant pool indices start at 1. None of our constants take two slots.
+        index = constants.size();
+        if (index > 0xFFFF) {
+            throw new IllegalStateException("Constant pool overflow");
+        }
+        constantIndices.put(key, index);
+        return index;
+    }
+}
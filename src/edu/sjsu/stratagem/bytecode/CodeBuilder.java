@@ -0,0 +1,277 @@
+package edu.sjsu.stratagem.bytecode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Emits the code of a single method. Each emitting method takes care of the
+ * operand stack bookkeeping, so max_stack is computed as the code is written.
+ */
+public class CodeBuilder {
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int ALOAD = 0x19;
+    private static final int AALOAD = 0x32;
+    private static final int POP = 0x57;
+    private static final int DUP = 0x59;
+    private static final int GOTO = 0xa7;
+    private static final int GETFIELD = 0xb4;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+    private static final int INVOKEINTERFACE = 0xb9;
+
+    public static final int IADD = 0x60;
+    public static final int ISUB = 0x64;
+    public static final int IMUL = 0x68;
+    public static final int IDIV = 0x6c;
+    public static final int IREM = 0x70;
+    public static final int IRETURN = 0xac;
+    public static final int ARETURN = 0xb0;
+    public static final int RETURN = 0xb1;
+
+    // Conditional branches. Each comparison opcode is paired with its negation.
+    public static final int IFEQ = 0x99;
+    public static final int IFNE = 0x9a;
+    public static final int IF_ICMPEQ = 0x9f;
+    public static final int IF_ICMPNE = 0xa0;
+    public static final int IF_ICMPLT = 0xa1;
+    public static final int IF_ICMPGE = 0xa2;
+    public static final int IF_ICMPGT = 0xa3;
+    public static final int IF_ICMPLE = 0xa4;
+
+    private ClassFile classFile;
+    private int access;
+    private String name;
+    private String descriptor;
+    private ByteArrayOutputStream code = new ByteArrayOutputStream();
+    private List<Label> labels = new ArrayList<>();
+    private int stackDepth;
+    private int maxStack;
+    private int maxLocals;
+    private int nameIndex;
+    private int descriptorIndex;
+
+    CodeBuilder(ClassFile classFile, int access, String name, String descriptor) {
+        this.classFile = classFile;
+        this.access = access;
+        this.name = name;
+        this.descriptor = descriptor;
+        // "this" plus the parameters.
+        this.maxLocals = 1 + argumentSlots(descriptor);
+    }
+
+    public void aload(int local) {
+        op(ALOAD, 1);
+        u1(local);
+    }
+
+    public void aaload() {
+        op(AALOAD, -1);
+    }
+
+    public void pop() {
+        op(POP, -1);
+    }
+
+    public void dup() {
+        op(DUP, 1);
+    }
+
+    public void iconst(int value) {
+        if (value >= -1 && value <= 5) {
+            op(ICONST_0 + value, 1);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            op(BIPUSH, 1);
+            u1(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            op(SIPUSH, 1);
+            u2(value);
+        } else {
+            op(LDC_W, 1);
+            u2(classFile.intConstant(value));
+        }
+    }
+
+    /**
+     * Emits an instruction that takes no operands, such as IADD or ARETURN.
+     */
+    public void insn(int opcode) {
+        switch (opcode) {
+        case IADD:
+        case ISUB:
+        case IMUL:
+        case IDIV:
+        case IREM:
+        case IRETURN:
+        case ARETURN:
+            op(opcode, -1);
+            break;
+        case RETURN:
+            op(opcode, 0);
+            break;
+        default:
+            throw new IllegalArgumentException("Unsupported opcode: " + opcode);
+        }
+    }
+
+    public void getfield(String owner, String fieldName, String fieldDescriptor) {
+        op(GETFIELD, 0);
+        u2(classFile.fieldConstant(owner, fieldName, fieldDescriptor));
+    }
+
+    public void invokestatic(String owner, String methodName, String methodDescriptor) {
+        op(INVOKESTATIC, invokeEffect(methodDescriptor, false));
+        u2(classFile.methodConstant(owner, methodName, methodDescriptor, false));
+    }
+
+    public void invokevirtual(String owner, String methodName, String methodDescriptor) {
+        op(INVOKEVIRTUAL, invokeEffect(methodDescriptor, true));
+        u2(classFile.methodConstant(owner, methodName, methodDescriptor, false));
+    }
+
+    public void invokespecial(String owner, String methodName, String methodDescriptor) {
+        op(INVOKESPECIAL, invokeEffect(methodDescriptor, true));
+        u2(classFile.methodConstant(owner, methodName, methodDescriptor, false));
+    }
+
+    public void invokeinterface(String owner, String methodName, String methodDescriptor) {
+        op(INVOKEINTERFACE, invokeEffect(methodDescriptor, true));
+        u2(classFile.methodConstant(owner, methodName, methodDescriptor, true));
+        u1(1 + argumentSlots(methodDescriptor));
+        u1(0);
+    }
+
+    /**
+     * Emits a conditional branch (IFEQ, IF_ICMPLT, ...).
+     */
+    public void jump(int opcode, Label target) {
+        int pops = opcode == GOTO ? 0 : opcode == IFEQ || opcode == IFNE ? 1 : 2;
+        op(opcode, -pops);
+        target.stackDepth = stackDepth;
+        if (target.fixups.isEmpty()) {
+            labels.add(target);
+        }
+        target.fixups.add(code.size());
+        u2(0);  // Patched once the label is placed.
+    }
+
+    /**
+     * Emits an unconditional branch. Nothing falls through it, so the stack depth
+     * is restored when the next label is placed.
+     */
+    public void jump(Label target) {
+        jump(GOTO, target);
+    }
+
+    /**
+     * Places a label at the current position.
+     * Labels that are only reached by a branch take their stack depth from the branch.
+     */
+    public void mark(Label label) {
+        label.position = code.size();
+        if (label.stackDepth >= 0) {
+            stackDepth = label.stackDepth;
+        } else {
+            label.stackDepth = stackDepth;
+        }
+    }
+
+    /**
+     * The opcode that branches when the given comparison does not hold.
+     */
+    public static int negate(int opcode) {
+        // Opcodes come in pairs: IFEQ/IFNE, IF_ICMPEQ/IF_ICMPNE, IF_ICMPLT/IF_ICMPGE, IF_ICMPGT/IF_ICMPLE.
+        return ((opcode - IFEQ) ^ 1) + IFEQ;
+    }
+
+    void prepare() {
+        nameIndex = classFile.utf8Constant(name);
+        descriptorIndex = classFile.utf8Constant(descriptor);
+    }
+
+    void write(DataOutputStream out, int codeAttributeIndex) throws IOException {
+        byte[] bytes = code.toByteArray();
+        if (bytes.length > Short.MAX_VALUE) {
+            // Branch offsets would not fit in their 16-bit operands.
+            throw new IllegalStateException("Method too large: " + name);
+        }
+        patchBranches(bytes);
+
+        out.writeShort(access);
+        out.writeShort(nameIndex);
+        out.writeShort(descriptorIndex);
+        out.writeShort(1);  // attributes: just Code
+        out.writeShort(codeAttributeIndex);
+        out.writeInt(12 + bytes.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.writeShort(0);  // exception table
+        out.writeShort(0);  // attributes
+    }
+
+    private void patchBranches(byte[] bytes) {
+        for (Label label : labels) {
+            if (label.position < 0) {
+                throw new IllegalStateException("Label was never placed in " + name);
+            }
+            for (int fixup : label.fixups) {
+                // Offsets are relative to the branch instruction, which precedes its operand.
+                int offset = label.position - (fixup - 1);
+                bytes[fixup] = (byte) (offset >> 8);
+                bytes[fixup + 1] = (byte) offset;
+            }
+        }
+    }
+
+    private void op(int opcode, int stackEffect) {
+        code.write(opcode);
+        stackDepth += stackEffect;
+        maxStack = Math.max(maxStack, stackDepth);
+    }
+
+    private void u1(int value) {
+        code.write(value);
+    }
+
+    private void u2(int value) {
+        code.write(value >> 8);
+        code.write(value);
+    }
+
+    private static int invokeEffect(String descriptor, boolean hasReceiver) {
+        int effect = -argumentSlots(descriptor) - (hasReceiver ? 1 : 0);
+        char ret = descriptor.charAt(descriptor.indexOf(')') + 1);
+        return ret == 'V' ? effect : effect + 1;
+    }
+
+    /**
+     * Counts the local variable slots taken by a method's parameters.
+     * Only single-slot parameter types are supported.
+     */
+    private static int argumentSlots(String descriptor) {
+        int slots = 0;
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            char c = descriptor.charAt(i);
+            while (c == '[') {
+                c = descriptor.charAt(++i);
+            }
+            if (c == 'L') {
+                i = descriptor.indexOf(';', i);
+            } else if (c == 'J' || c == 'D') {
+                throw new IllegalArgumentException("Wide parameters are not supported: " + descriptor);
+            }
+            slots++;
+            i++;
+        }
+        return slots;
+    }
+}
@@ -0,0 +1,13 @@
+package edu.sjsu.stratagem.bytecode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A position in a method's code that branches can target before it is known.
+ */
+public class Label {
+    int position = -1;
+    int stackDepth = -1;
+    List<Integer> fixups = new ArrayList<>();
+}
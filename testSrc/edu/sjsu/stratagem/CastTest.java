@@ -27,6 +27,27 @@ public class CastTest {
         assertTrue("Failed to throw StratagemCastException", false);
     }
 
+    @Test
+    // Assert that <Int>x succeeds while x is an int and fails once it is not.
+    public void testSpeculativeCast() {
+        ValueEnvironment env = new ValueEnvironment();
+        CastExpr cast = new CastExpr(IntType.singleton, new VarExpr("x"));
+
+        env.updateVar("x", IntVal.of(1));
+        assertEquals(IntVal.of(1), cast.evaluate(env));
+        env.updateVar("x", IntVal.of(2));
+        assertEquals(IntVal.of(2), cast.evaluate(env));
+
+        env.updateVar("x", BoolVal.of(true));
+        try {
+            cast.evaluate(env);
+        } catch (StratagemCastException e) {
+            return;  // Test passed. No need to call assert.
+        }
+
+        assertTrue("Failed to throw StratagemCastException", false);
+    }
+
     @Test
     // Assert that
     //   if (true) { true } else { unit }
@@ -70,7 +91,7 @@ public class CastTest {
         IfExpr ifExpr = new IfExpr(ValueExpr.trueSingleton, fn1, fn2);
 
         Type ifResultType = ifExpr.typecheck(new TypeEnvironment());
-        Type anyToUnit = new ClosureType(AnyType.singleton, UnitType.singleton);
+        Type anyToUnit = ClosureType.of(AnyType.singleton, UnitType.singleton);
 
         assertEquals(anyToUnit, ifResultType);
     }
@@ -88,7 +109,7 @@ public class CastTest {
         IfExpr ifExpr = new IfExpr(ValueExpr.trueSingleton, fn1, fn2);
 
         Type ifResultType = ifExpr.typecheck(new TypeEnvironment());
-        Type anyToUnit = new ClosureType(AnyType.singleton, UnitType.singleton);
+        Type anyToUnit = ClosureType.of(AnyType.singleton, UnitType.singleton);
 
         assertEquals(anyToUnit, ifResultType);
     }
@@ -106,7 +127,7 @@ public class CastTest {
         IfExpr ifExpr = new IfExpr(ValueExpr.trueSingleton, fn1, fn2);
 
         Type ifResultType = ifExpr.typecheck(new TypeEnvironment());
-        Type unitToAny = new ClosureType(UnitType.singleton, AnyType.singleton);
+        Type unitToAny = ClosureType.of(UnitType.singleton, AnyType.singleton);
 
         assertEquals(unitToAny, ifResultType);
     }
@@ -124,7 +145,7 @@ public class CastTest {
         IfExpr ifExpr = new IfExpr(ValueExpr.trueSingleton, fn1, fn2);
 
         Type ifResultType = ifExpr.typecheck(new TypeEnvironment());
-        Type unitToAny = new ClosureType(UnitType.singleton, AnyType.singleton);
+        Type unitToAny = ClosureType.of(UnitType.singleton, AnyType.singleton);
 
         assertEquals(unitToAny, ifResultType);
     }
@@ -139,7 +160,7 @@ public class CastTest {
         IfExpr ifExpr = new IfExpr(ValueExpr.trueSingleton, TestUtils.id, TestUtils.succ);
 
         Type ifResultType = ifExpr.typecheck(new TypeEnvironment());
-        Type anyToAny = new ClosureType(AnyType.singleton, AnyType.singleton);
+        Type anyToAny = ClosureType.of(AnyType.singleton, AnyType.singleton);
 
         assertEquals(anyToAny, ifResultType);
     }
@@ -157,12 +178,173 @@ public class CastTest {
         IfExpr ifExpr = new IfExpr(ValueExpr.trueSingleton, fn1, fn2);
 
         Type ifResultType = ifExpr.typecheck(new TypeEnvironment());
-        Type anyToIntToAny = new ClosureType(
+        Type anyToIntToAny = ClosureType.of(
                 AnyType.singleton,
-                new ClosureType(
+                ClosureType.of(
                         IntType.singleton,
                         AnyType.singleton));
 
         assertEquals(anyToIntToAny, ifResultType);
     }
+
+    @Test
+    // Assert that structurally equal types are the same instance, and that
+    // consistency and supertypes of canonical types are canonical too.
+    public void testCanonicalTypes() {
+        Type intToAny = ClosureType.of(IntType.singleton, AnyType.singleton);
+        Type intToInt = ClosureType.of(IntType.singleton, IntType.singleton);
+        Type boolToInt = ClosureType.of(BoolType.singleton, IntType.singleton);
+
+        assertSame(intToAny, ClosureType.of(IntType.singleton, AnyType.singleton));
+        assertSame(RefType.of(intToInt), RefType.of(ClosureType.of(IntType.singleton, IntType.singleton)));
+        assertNotSame(intToAny, intToInt);
+
+        assertTrue(intToInt.consistentWith(intToAny));
+        assertFalse(intToInt.consistentWith(boolToInt));
+        assertSame(ClosureType.of(AnyType.singleton, IntType.singleton), intToInt.findSupertypeWith(boolToInt));
+        assertSame(intToInt.findSupertypeWith(boolToInt), boolToInt.findSupertypeWith(intToInt));
+    }
+
+    @Test
+    // Assert that closure types of any arity are canonical, and that types of different arities are not consistent.
+    public void testMultiArgumentTypes() {
+        Type[] intInt = { IntType.singleton, IntType.singleton };
+        Type[] anyInt = { AnyType.singleton, IntType.singleton };
+        ClosureType intIntToInt = ClosureType.of(intInt, IntType.singleton);
+        ClosureType anyIntToInt = ClosureType.of(anyInt, IntType.singleton);
+        ClosureType unitToInt = ClosureType.of(new Type[0], IntType.singleton);
+
+        assertSame(intIntToInt, ClosureType.of(new Type[] { IntType.singleton, IntType.singleton }, IntType.singleton));
+        assertSame(unitToInt, ClosureType.of(new Type[0], IntType.singleton));
+        assertSame(ClosureType.of(IntType.singleton, IntType.singleton),
+                   ClosureType.of(new Type[] { IntType.singleton }, IntType.singleton));
+        assertNotSame(intIntToInt, ClosureType.of(IntType.singleton, ClosureType.of(IntType.singleton, IntType.singleton)));
+
+        assertTrue(intIntToInt.consistentWith(anyIntToInt));
+        assertSame(intIntToInt, intIntToInt.meetWith(anyIntToInt));
+        assertFalse(intIntToInt.consistentWith(unitToInt));
+        assertSame(AnyType.singleton, intIntToInt.findSupertypeWith(unitToInt));
+        assertEquals("(Int, Int) -> Int", intIntToInt.toString());
+    }
+
+    @Test
+    // Assert that casts to the same type share a checker, and that the checkers for
+    // structured types agree with consistentWith() using the checkers for their parts.
+    public void testCastCheckers() {
+        ClosureType anyToInt = ClosureType.of(AnyType.singleton, IntType.singleton);
+        ClosureType boolToAny = ClosureType.of(BoolType.singleton, AnyType.singleton);
+        ClosureType boolToBool = ClosureType.of(BoolType.singleton, BoolType.singleton);
+        ClosureType intIntToInt = ClosureType.of(new Type[] { IntType.singleton, IntType.singleton }, IntType.singleton);
+        RefType refAnyToInt = RefType.of(anyToInt);
+
+        CastChecker checker = CastChecker.of(refAnyToInt);
+        assertSame(checker, new CastExpr(refAnyToInt, new ValueExpr(UnitVal.singleton)).getChecker());
+        assertTrue(checker.accepts(RefType.of(boolToAny)));
+        assertFalse(checker.accepts(RefType.of(boolToBool)));
+        assertFalse(checker.accepts(RefType.of(intIntToInt)));
+        assertFalse(checker.accepts(anyToInt));
+        assertTrue(CastChecker.of(AnyType.singleton).accepts(intIntToInt));
+
+        try {
+            CastChecker.of(IntType.singleton).check(BoolVal.trueSingleton);
+        } catch (StratagemCastException e) {
+            return;  // Test passed. No need to call assert.
+        }
+
+        assertTrue("Failed to throw StratagemCastException", false);
+    }
+
+    @Test
+    // Assert that in
+    //   fn(n: Int) { n + 1 }(fn(x: ?) { x }(1))
+    // the cast of 1 to ? is removed, but the cast of the result of the inner call to Int is not.
+    public void testCastElimination() {
+        Expression app = new FunctionAppExpr(TestUtils.succ, TestUtils.makeAny(1));
+        app.typecheck(new TypeEnvironment());
+
+        CastEliminator castEliminator = new CastEliminator();
+        app = castEliminator.optimize(app);
+        assertEquals(1, castEliminator.getRemovedCount());
+        assertEquals(IntVal.of(2), app.evaluate(new ValueEnvironment()));
+    }
+
+    @Test
+    // Assert that casting fn(n: Int) { n + 1 } back and forth between ? -> ? and Int -> Int
+    // composes the casts instead of wrapping the function again each time,
+    // and that the arguments of the ? -> ? proxy are still checked.
+    public void testFunctionProxy() {
+        TestUtils.succ.typecheck(new TypeEnvironment());
+        Value succ = TestUtils.succ.evaluate(new ValueEnvironment());
+        ClosureType anyToAny = ClosureType.of(AnyType.singleton, AnyType.singleton);
+        ClosureType intToInt = ClosureType.of(IntType.singleton, IntType.singleton);
+
+        Value f = succ;
+        for (int i = 0; i < 1000; i++) {
+            f = CastExpr.cast(CastExpr.cast(f, anyToAny), intToInt);
+        }
+        assertFalse(((ClosureVal) f).isProxy());
+        assertEquals(IntVal.of(2), ((ClosureVal) f).apply(IntVal.of(1)));
+
+        ClosureVal proxy = (ClosureVal) CastExpr.cast(f, anyToAny);
+        assertSame(anyToAny, proxy.getType());
+        assertEquals(IntVal.of(3), proxy.apply(IntVal.of(2)));
+        try {
+            proxy.apply(BoolVal.trueSingleton);
+        } catch (StratagemCastException e) {
+            return;  // Test passed. No need to call assert.
+        }
+
+        assertTrue("Failed to throw StratagemCastException", false);
+    }
+
+    @Test
+    // Assert that the cast of a callee to Int -> ?, for a call with an Int argument, lets
+    // fn(n: Int) { n + 1 } be called directly, but that a cast to ? -> ? still gives a proxy
+    // that checks the arguments, even once the call site has seen the closure's type.
+    public void testCalleeCastCache() {
+        TestUtils.succ.typecheck(new TypeEnvironment());
+        Value succ = TestUtils.succ.evaluate(new ValueEnvironment());
+        ClosureType intToAny = ClosureType.of(IntType.singleton, AnyType.singleton);
+        ClosureType anyToAny = ClosureType.of(AnyType.singleton, AnyType.singleton);
+
+        CastExpr direct = new CalleeCastExpr(new CastExpr(intToAny, new ValueExpr(succ), succ.getType()));
+        assertSame(succ, direct.check(succ));
+        assertSame(succ, direct.check(succ));
+
+        CastExpr proxied = new CalleeCastExpr(new CastExpr(anyToAny, new ValueExpr(succ), succ.getType()));
+        ClosureVal proxy = (ClosureVal) proxied.check(succ);
+        assertTrue(proxy.isProxy());
+        assertSame(proxy, proxied.check(succ));
+        try {
+            proxy.apply(BoolVal.trueSingleton);
+        } catch (StratagemCastException e) {
+            return;  // Test passed. No need to call assert.
+        }
+
+        assertTrue("Failed to throw StratagemCastException", false);
+    }
+
+    @Test
+    // Assert that casting a Ref ? tightens its cell in place, so that later writes
+    // through a ?-typed reference are checked against the tightened cell type.
+    public void testMonotonicReference() {
+        RefVal ref = new RefVal(IntVal.of(1), AnyType.singleton);
+        RefType refInt = RefType.of(IntType.singleton);
+        RefType refAny = RefType.of(AnyType.singleton);
+
+        assertSame(refAny, ref.getType());
+        assertSame(ref, CastExpr.cast(ref, refInt));
+        assertSame(refInt, ref.getType());
+        assertSame(refInt, CastExpr.cast(ref, refAny).getType());
+
+        ref.assignChecked(IntVal.of(2));
+        assertEquals(IntVal.of(2), ref.dereference());
+        try {
+            ref.assignChecked(BoolVal.trueSingleton);
+        } catch (StratagemCastException e) {
+            return;  // Test passed. No need to call assert.
+        }
+
+        assertTrue("Failed to throw StratagemCastException", false);
+    }
 }
@@ -2,6 +2,7 @@ package edu.sjsu.stratagem;
 
 import static org.junit.Assert.*;
 
+import edu.sjsu.stratagem.exception.StratagemCastException;
 import edu.sjsu.stratagem.exception.StratagemException;
 import org.junit.Test;
 
@@ -10,7 +11,7 @@ public class ExpressionTest {
     @Test
     public void testValueExpr() {
         ValueEnvironment env = new ValueEnvironment();
-        ValueExpr ve = new ValueExpr(new IntVal(3));
+        ValueExpr ve = new ValueExpr(IntVal.of(3));
         IntVal i = (IntVal) ve.evaluate(env);
         assertEquals(3, i.toInt());
     }
@@ -18,7 +19,7 @@ public class ExpressionTest {
     @Test
     public void testVarExpr() {
         ValueEnvironment env = new ValueEnvironment();
-        Value v = new IntVal(3);
+        Value v = IntVal.of(3);
         env.updateVar("x", v);
         Expression e = new VarExpr("x");
         assertEquals(v, e.evaluate(env));
@@ -27,7 +28,7 @@ public class ExpressionTest {
     @Test(expected=StratagemException.class)
     public void testVarNotFoundExpr() {
         ValueEnvironment env = new ValueEnvironment();
-        Value v = new IntVal(3);
+        Value v = IntVal.of(3);
         env.updateVar("x", v);
         Expression e = new VarExpr("y");
         e.evaluate(env);
@@ -37,8 +38,8 @@ public class ExpressionTest {
     public void testIfTrueExpr() {
         ValueEnvironment env = new ValueEnvironment();
         IfExpr ife = new IfExpr(ValueExpr.trueSingleton,
-                new ValueExpr(new IntVal(1)),
-                new ValueExpr(new IntVal(2)));
+                new ValueExpr(IntVal.of(1)),
+                new ValueExpr(IntVal.of(2)));
         IntVal iv = (IntVal) ife.evaluate(env);
         assertEquals(1, iv.toInt());
     }
@@ -47,8 +48,8 @@ public class ExpressionTest {
     public void testIfFalseExpr() {
         ValueEnvironment env = new ValueEnvironment();
         IfExpr ife = new IfExpr(ValueExpr.falseSingleton,
-                new ValueExpr(new IntVal(1)),
-                new ValueExpr(new IntVal(2)));
+                new ValueExpr(IntVal.of(1)),
+                new ValueExpr(IntVal.of(2)));
         IntVal iv = (IntVal) ife.evaluate(env);
         assertEquals(2, iv.toInt());
     }
@@ -56,9 +57,9 @@ public class ExpressionTest {
     @Test
     public void testBadIfExpr() {
         ValueEnvironment env = new ValueEnvironment();
-        IfExpr ife = new IfExpr(new ValueExpr(new IntVal(0)),
-                new ValueExpr(new IntVal(1)),
-                new ValueExpr(new IntVal(2)));
+        IfExpr ife = new IfExpr(new ValueExpr(IntVal.of(0)),
+                new ValueExpr(IntVal.of(1)),
+                new ValueExpr(IntVal.of(2)));
         try {
             ife.evaluate(env);
             fail();
@@ -69,22 +70,59 @@ public class ExpressionTest {
     public void testBinOpExpr() {
         ValueEnvironment env = new ValueEnvironment();
         BinOpExpr boe = new BinOpExpr(Op.ADD,
-                new ValueExpr(new IntVal(1)),
-                new ValueExpr(new IntVal(2)));
+                new ValueExpr(IntVal.of(1)),
+                new ValueExpr(IntVal.of(2)));
         IntVal iv = (IntVal) boe.evaluate(env);
-        assertEquals(new IntVal(3), iv);
+        assertEquals(IntVal.of(3), iv);
+    }
+
+    @Test
+    public void testSpecializedBinOpExpr() {
+        Expression add = new BinOpExpr(Op.ADD,
+                new ValueExpr(IntVal.of(1)),
+                new ValueExpr(IntVal.of(2)));
+        add.typecheck(new TypeEnvironment());
+        add = add.resolve(new Scope());
+        assertTrue(add instanceof IntAddExpr);
+        assertEquals(IntVal.of(3), add.evaluate(new ValueEnvironment()));
+
+        Expression lt = new BinOpExpr(Op.LT,
+                new ValueExpr(IntVal.of(1)),
+                new ValueExpr(IntVal.of(2)));
+        lt.typecheck(new TypeEnvironment());
+        lt = lt.resolve(new Scope());
+        assertSame(BoolVal.trueSingleton, lt.evaluate(new ValueEnvironment()));
+    }
+
+    @Test
+    // x == y, where x and y change from ints to booleans between evaluations.
+    public void testDynamicBinOpExpr() {
+        ValueEnvironment env = new ValueEnvironment();
+        BinOpExpr eq = new BinOpExpr(Op.EQ, new VarExpr("x"), new VarExpr("y"));
+
+        env.updateVar("x", IntVal.of(1));
+        env.updateVar("y", IntVal.of(1));
+        assertEquals(BoolVal.trueSingleton, eq.evaluate(env));
+
+        env.updateVar("x", BoolVal.of(true));
+        env.updateVar("y", BoolVal.of(false));
+        assertEquals(BoolVal.falseSingleton, eq.evaluate(env));
+
+        env.updateVar("x", IntVal.of(2));
+        env.updateVar("y", IntVal.of(2));
+        assertEquals(BoolVal.trueSingleton, eq.evaluate(env));
     }
 
     @Test
     public void testSeqExpr() {
         ValueEnvironment env = new ValueEnvironment();
         SeqExpr se = new SeqExpr(new Expression[] {
-                new ValueExpr(new IntVal(2)),
+                new ValueExpr(IntVal.of(2)),
                 new BinOpExpr(Op.MULTIPLY,
-                        new ValueExpr(new IntVal(2)),
-                        new ValueExpr(new IntVal(3)))
+                        new ValueExpr(IntVal.of(2)),
+                        new ValueExpr(IntVal.of(3)))
         });
-        assertEquals(new IntVal(6), se.evaluate(env));
+        assertEquals(IntVal.of(6), se.evaluate(env));
     }
 
     @Test
@@ -96,16 +134,16 @@ public class ExpressionTest {
                 AnyType.singleton,
                 new VarExpr("x"));
         f.typecheck(new TypeEnvironment());
-        Expression arg = new ValueExpr(new IntVal(321));
+        Expression arg = new ValueExpr(IntVal.of(321));
         FunctionAppExpr app = new FunctionAppExpr(f, arg);
-        assertEquals(new IntVal(321), app.evaluate(env));
+        assertEquals(IntVal.of(321), app.evaluate(env));
     }
 
     @Test
     // fn(name: String) { fn(unused: String) { name }("Bob") }("Alice")
     public void testScope1() {
-        StringVal alice = new StringVal("Alice");
-        StringVal bob = new StringVal("Bob");
+        StringVal alice = StringVal.intern("Alice");
+        StringVal bob = StringVal.intern("Bob");
 
         ValueEnvironment env = new ValueEnvironment();
         FunctionDeclExpr innerDecl = new FunctionDeclExpr(
@@ -126,8 +164,8 @@ public class ExpressionTest {
     @Test
     // fn(name: String) { fn(name: String) { name }("Bob") }("Alice")
     public void testScope2() {
-        StringVal alice = new StringVal("Alice");
-        StringVal bob = new StringVal("Bob");
+        StringVal alice = StringVal.intern("Alice");
+        StringVal bob = StringVal.intern("Bob");
 
         ValueEnvironment env = new ValueEnvironment();
         FunctionDeclExpr innerDecl = new FunctionDeclExpr(
@@ -150,8 +188,8 @@ public class ExpressionTest {
     @Test
     // fn(name: String) { fn(name: String) { name }("Bob"); name }("Alice")
     public void testScope3() {
-        StringVal alice = new StringVal("Alice");
-        StringVal bob = new StringVal("Bob");
+        StringVal alice = StringVal.intern("Alice");
+        StringVal bob = StringVal.intern("Bob");
 
         ValueEnvironment env = new ValueEnvironment();
         FunctionDeclExpr innerDecl = new FunctionDeclExpr(
@@ -173,4 +211,573 @@ public class ExpressionTest {
         Value v = outerApp.evaluate(env);
         assertEquals(v, alice);
     }
+
+    @Test
+    // fn(name: String) { fn(unused: String) { name }("Bob"); name }("Alice")
+    // with variables resolved to lexical addresses.
+    public void testResolvedScope() {
+        StringVal alice = StringVal.intern("Alice");
+        StringVal bob = StringVal.intern("Bob");
+
+        FunctionDeclExpr innerDecl = new FunctionDeclExpr(
+                "unused",
+                StringType.singleton,
+                new VarExpr("name"));
+        FunctionDeclExpr outerDecl = new FunctionDeclExpr(
+                "name",
+                StringType.singleton,
+                new SeqExpr(new Expression[] {
+                        new FunctionAppExpr(innerDecl, new ValueExpr(bob)),
+                        new VarExpr("name")
+                }));
+        Expression outerApp = new FunctionAppExpr(outerDecl, new ValueExpr(alice));
+        outerApp.typecheck(new TypeEnvironment());
+        outerApp = outerApp.resolve(new Scope());
+
+        Value v = outerApp.evaluate(new ValueEnvironment());
+        assertEquals(v, alice);
+    }
+
+    @Test
+    // fn(a: Int, b: Int) { fn(x: Int) { b * 10 + a + x } }(1, 2)(3)
+    // with the free variables of the inner function captured in the order they are first used.
+    public void testCapturedVars() {
+        FunctionDeclExpr inner = new FunctionDeclExpr(
+                "x",
+                IntType.singleton,
+                new BinOpExpr(Op.ADD,
+                        new BinOpExpr(Op.ADD,
+                                new BinOpExpr(Op.MULTIPLY, new VarExpr("b"), new ValueExpr(IntVal.of(10))),
+                                new VarExpr("a")),
+                        new VarExpr("x")));
+        FunctionDeclExpr outer = new FunctionDeclExpr(
+                new String[] { "a", "b" },
+                new Type[] { IntType.singleton, IntType.singleton },
+                inner);
+        Expression app = new FunctionAppExpr(outer, new Expression[] {
+                new ValueExpr(IntVal.of(1)), new ValueExpr(IntVal.of(2)) });
+        app.typecheck(new TypeEnvironment());
+        app = app.resolve(new Scope());
+
+        ClosureVal closure = (ClosureVal) app.evaluate(new ValueEnvironment());
+        assertArrayEquals(new Value[] { IntVal.of(2), IntVal.of(1) }, closure.getCaptured());
+        assertEquals(IntVal.of(24), closure.apply(IntVal.of(3)));
+    }
+
+    @Test
+    // fn(a: Int) { fn(b: Int) { fn(c: Int) { a * 100 + b * 10 + c } } }(1)(2)(3)
+    // where the middle function captures a only to pass it on to the innermost one.
+    public void testNestedCapture() {
+        FunctionDeclExpr innermost = new FunctionDeclExpr(
+                "c",
+                IntType.singleton,
+                new BinOpExpr(Op.ADD,
+                        new BinOpExpr(Op.ADD,
+                                new BinOpExpr(Op.MULTIPLY, new VarExpr("a"), new ValueExpr(IntVal.of(100))),
+                                new BinOpExpr(Op.MULTIPLY, new VarExpr("b"), new ValueExpr(IntVal.of(10)))),
+                        new VarExpr("c")));
+        FunctionDeclExpr middle = new FunctionDeclExpr("b", IntType.singleton, innermost);
+        FunctionDeclExpr outer = new FunctionDeclExpr("a", IntType.singleton, middle);
+        Expression app = new FunctionAppExpr(outer, new ValueExpr(IntVal.of(1)));
+        app.typecheck(new TypeEnvironment());
+        app = app.resolve(new Scope());
+
+        ClosureVal middleClosure = (ClosureVal) app.evaluate(new ValueEnvironment());
+        assertArrayEquals(new Value[] { IntVal.of(1) }, middleClosure.getCaptured());
+
+        ClosureVal innermostClosure = (ClosureVal) middleClosure.apply(IntVal.of(2));
+        assertArrayEquals(new Value[] { IntVal.of(1), IntVal.of(2) }, innermostClosure.getCaptured());
+        assertEquals(IntVal.of(123), innermostClosure.apply(IntVal.of(3)));
+    }
+
+    @Test
+    // fn(x: Int) { fn(y: Int) { (let x: Int = y + 1 in x) * 10 + x } }(1)(5) and fn(x: Int) { fn(x: Int) { x } }(1)(2)
+    // where inner bindings hide the captured x only within their scope.
+    public void testShadowedCapture() {
+        FunctionDeclExpr inner = new FunctionDeclExpr(
+                "y",
+                IntType.singleton,
+                new BinOpExpr(Op.ADD,
+                        new BinOpExpr(Op.MULTIPLY,
+                                new LetExpr("x", IntType.singleton,
+                                        new BinOpExpr(Op.ADD, new VarExpr("y"), new ValueExpr(IntVal.of(1))),
+                                        new VarExpr("x")),
+                                new ValueExpr(IntVal.of(10))),
+                        new VarExpr("x")));
+        Expression app = new FunctionAppExpr(
+                new FunctionDeclExpr("x", IntType.singleton, inner), new ValueExpr(IntVal.of(1)));
+        app.typecheck(new TypeEnvironment());
+        app = app.resolve(new Scope());
+
+        ClosureVal closure = (ClosureVal) app.evaluate(new ValueEnvironment());
+        assertArrayEquals(new Value[] { IntVal.of(1) }, closure.getCaptured());
+        assertEquals(IntVal.of(61), closure.apply(IntVal.of(5)));
+
+        // A parameter of the same name leaves nothing to capture.
+        Expression shadowing = new FunctionAppExpr(
+                new FunctionDeclExpr("x", IntType.singleton,
+                        new FunctionDeclExpr("x", IntType.singleton, new VarExpr("x"))),
+                new ValueExpr(IntVal.of(1)));
+        shadowing.typecheck(new TypeEnvironment());
+        shadowing = shadowing.resolve(new Scope());
+
+        closure = (ClosureVal) shadowing.evaluate(new ValueEnvironment());
+        assertEquals(0, closure.getCaptured().length);
+        assertEquals(IntVal.of(2), closure.apply(IntVal.of(2)));
+    }
+
+    @Test
+    // let x: Int = 1 in (let x: Int = x + 1 in x * 10) + x
+    // with both bindings in slots of the same frame.
+    public void testLetExpr() {
+        Expression inner = new LetExpr("x", IntType.singleton,
+                new BinOpExpr(Op.ADD, new VarExpr("x"), new ValueExpr(IntVal.of(1))),
+                new BinOpExpr(Op.MULTIPLY, new VarExpr("x"), new ValueExpr(IntVal.of(10))));
+        Expression outer = new LetExpr("x", IntType.singleton,
+                new ValueExpr(IntVal.of(1)),
+                new BinOpExpr(Op.ADD, inner, new VarExpr("x")));
+        assertEquals(IntType.singleton, outer.typecheck(new TypeEnvironment()));
+
+        Scope scope = new Scope();
+        outer = outer.resolve(scope);
+        assertEquals(2, scope.getFrameLayout().length);
+
+        Value v = outer.evaluate(TestUtils.newFrame(scope));
+        assertEquals(IntVal.of(21), v);
+    }
+
+    @Test
+    // let rec sum: Int -> Int = fn(n: Int) { if (n == 0) { 0 } else { n + sum(n - 1) } } in sum(100)
+    public void testLetRecExpr() {
+        FunctionDeclExpr decl = new FunctionDeclExpr(
+                "n",
+                IntType.singleton,
+                new IfExpr(
+                        new BinOpExpr(Op.EQ, new VarExpr("n"), new ValueExpr(IntVal.of(0))),
+                        new ValueExpr(IntVal.of(0)),
+                        new BinOpExpr(Op.ADD, new VarExpr("n"), new FunctionAppExpr(
+                                new VarExpr("sum"),
+                                new BinOpExpr(Op.SUBTRACT, new VarExpr("n"), new ValueExpr(IntVal.of(1)))))));
+        ClosureType intToInt = ClosureType.of(IntType.singleton, IntType.singleton);
+        Expression letRec = new LetRecExpr("sum", intToInt, decl,
+                new FunctionAppExpr(new VarExpr("sum"), new ValueExpr(IntVal.of(100))));
+        assertEquals(IntType.singleton, letRec.typecheck(new TypeEnvironment()));
+        assertSame(intToInt, decl.getType());
+
+        Value v = TestUtils.resolveAndEvaluate(letRec);
+        assertEquals(IntVal.of(5050), v);
+    }
+
+    @Test
+    // fn(a: Int, b: ?) { a - b }(10, 3), called through a node specialized for two arguments.
+    public void testMultiArgumentFunction() {
+        FunctionDeclExpr decl = new FunctionDeclExpr(
+                new String[] { "a", "b" },
+                new Type[] { IntType.singleton, AnyType.singleton },
+                new BinOpExpr(Op.SUBTRACT, new VarExpr("a"), new VarExpr("b")));
+        Expression app = new FunctionAppExpr(decl, new Expression[] {
+                new ValueExpr(IntVal.of(10)),
+                new ValueExpr(IntVal.of(3))
+        });
+        app.typecheck(new TypeEnvironment());
+        assertSame(ClosureType.of(new Type[] { IntType.singleton, AnyType.singleton }, IntType.singleton),
+                   decl.getType());
+
+        app = app.resolve(new Scope());
+        assertTrue(app instanceof FunctionApp2Expr);
+        assertEquals(IntVal.of(7), app.evaluate(new ValueEnvironment()));
+    }
+
+    @Test
+    // fn(x: Int) { 1; x + 2 * 3 }(if (true) { 4 } else { 5 }), optimized one pass at a time
+    // into let x: Int = 4 in x + 6, while 1 / 0 is left to fail when it runs.
+    public void testOptimizationPasses() {
+        FunctionDeclExpr decl = new FunctionDeclExpr(
+                "x",
+                IntType.singleton,
+                new SeqExpr(new Expression[] {
+                        new ValueExpr(IntVal.of(1)),
+                        new BinOpExpr(Op.ADD, new VarExpr("x"),
+                                new BinOpExpr(Op.MULTIPLY, new ValueExpr(IntVal.of(2)), new ValueExpr(IntVal.of(3))))
+                }));
+        Expression e = new FunctionAppExpr(decl, new IfExpr(
+                ValueExpr.trueSingleton, new ValueExpr(IntVal.of(4)), new ValueExpr(IntVal.of(5))));
+        e.typecheck(new TypeEnvironment());
+
+        ConstantFolder constantFolder = new ConstantFolder();
+        BranchFolder branchFolder = new BranchFolder();
+        DeadCodeEliminator deadCodeEliminator = new DeadCodeEliminator();
+        Inliner inliner = new Inliner();
+        e = inliner.optimize(deadCodeEliminator.optimize(branchFolder.optimize(constantFolder.optimize(e))));
+        assertEquals(1, constantFolder.getFoldedCount());
+        assertEquals(1, branchFolder.getFoldedCount());
+        assertEquals(1, deadCodeEliminator.getRemovedCount());
+        assertEquals(1, inliner.getInlinedCount());
+        assertTrue(e instanceof LetExpr);
+        assertEquals(IntVal.of(10), e.evaluate(new ValueEnvironment()));
+
+        Expression division = new BinOpExpr(Op.DIVIDE, new ValueExpr(IntVal.of(1)), new ValueExpr(IntVal.of(0)));
+        division.typecheck(new TypeEnvironment());
+        assertSame(division, constantFolder.optimize(division));
+    }
+
+    @Test(expected=StratagemException.class)
+    public void testUnknownOptimizationPass() {
+        new Optimizer().disable("everything");
+    }
+
+    @Test
+    // let r: Ref (Int, Int) -> Int = ref fn(n: Int, acc: Int) { acc } in
+    // (r <- fn(n: Int, acc: Int) { if n == 0 then acc else (!r)(n - 1, acc + 1) }; (!r)(100000, 0))
+    public void testDeepTailCall() {
+        ClosureType countType = ClosureType.of(new Type[] { IntType.singleton, IntType.singleton }, IntType.singleton);
+        String[] paramNames = { "n", "acc" };
+        Type[] paramTypes = { IntType.singleton, IntType.singleton };
+        Expression count = new FunctionDeclExpr(paramNames, paramTypes,
+                new IfExpr(new BinOpExpr(Op.EQ, new VarExpr("n"), new ValueExpr(IntVal.of(0))),
+                        new VarExpr("acc"),
+                        new FunctionAppExpr(new DerefExpr(new VarExpr("r")), new Expression[] {
+                                new BinOpExpr(Op.SUBTRACT, new VarExpr("n"), new ValueExpr(IntVal.of(1))),
+                                new BinOpExpr(Op.ADD, new VarExpr("acc"), new ValueExpr(IntVal.of(1)))
+                        })));
+        Expression let = new LetExpr("r", RefType.of(countType),
+                new RefExpr(new FunctionDeclExpr(paramNames, paramTypes, new VarExpr("acc"))),
+                new SeqExpr(new Expression[] {
+                        new AssignExpr(new VarExpr("r"), count),
+                        new FunctionAppExpr(new DerefExpr(new VarExpr("r")), new Expression[] {
+                                new ValueExpr(IntVal.of(100000)), new ValueExpr(IntVal.of(0)) })
+                }));
+        assertEquals(IntType.singleton, let.typecheck(new TypeEnvironment()));
+
+        // Without the trampoline, each of these calls would take a frame of the Java stack.
+        Value v = TestUtils.resolveAndEvaluate(let);
+        assertEquals(IntVal.of(100000), v);
+    }
+
+    @Test
+    // let even: Ref (Int) -> Bool = ref fn(n: Int) { true } in let odd: Ref (Int) -> Bool = ref fn(n: Int) { false } in
+    // (even <- fn(n: Int) { if n == 0 then true else (!odd)(n - 1) };
+    //  odd <- fn(n: Int) { if n == 0 then false else (!even)(n - 1) }; (!even)(100001))
+    public void testDeepMutualTailCall() {
+        Type refPredicate = RefType.of(ClosureType.of(new Type[] { IntType.singleton }, BoolType.singleton));
+        Expression let = new LetExpr("even", refPredicate,
+                new RefExpr(new FunctionDeclExpr("n", IntType.singleton, new ValueExpr(BoolVal.of(true)))),
+                new LetExpr("odd", refPredicate,
+                        new RefExpr(new FunctionDeclExpr("n", IntType.singleton, new ValueExpr(BoolVal.of(false)))),
+                        new SeqExpr(new Expression[] {
+                                new AssignExpr(new VarExpr("even"), parityStep(true, "odd")),
+                                new AssignExpr(new VarExpr("odd"), parityStep(false, "even")),
+                                new FunctionAppExpr(new DerefExpr(new VarExpr("even")),
+                                        new ValueExpr(IntVal.of(100001)))
+                        })));
+        assertEquals(BoolType.singleton, let.typecheck(new TypeEnvironment()));
+
+        Value v = TestUtils.resolveAndEvaluate(let);
+        assertEquals(BoolVal.of(false), v);
+    }
+
+    // fn(n: Int) { if n == 0 then <atZero> else (!<other>)(n - 1) }
+    private static Expression parityStep(boolean atZero, String other) {
+        return new FunctionDeclExpr("n", IntType.singleton,
+                new IfExpr(new BinOpExpr(Op.EQ, new VarExpr("n"), new ValueExpr(IntVal.of(0))),
+                        new ValueExpr(BoolVal.of(atZero)),
+                        new FunctionAppExpr(new DerefExpr(new VarExpr(other)),
+                                new BinOpExpr(Op.SUBTRACT, new VarExpr("n"), new ValueExpr(IntVal.of(1))))));
+    }
+
+    @Test
+    // let i: Ref Int = ref 0 in let s: Ref Int = ref 0 in (while (!i != 10) { i <- !i + 1; s <- !s + !i }; !s)
+    public void testWhileExpr() {
+        Expression let = TestUtils.makeSumLoop();
+        assertEquals(IntType.singleton, let.typecheck(new TypeEnvironment()));
+
+        Value v = TestUtils.resolveAndEvaluate(let);
+        assertEquals(IntVal.of(55), v);
+    }
+
+    @Test
+    // The sum loop of TestUtils.makeSumLoop(), with both its references replaced by variables,
+    // while the reference in let r: Ref Int = ref 1 in r escapes.
+    public void testEscapeAnalysis() {
+        Expression let = TestUtils.makeSumLoop();
+        let.typecheck(new TypeEnvironment());
+
+        EscapeAnalyzer escapeAnalyzer = new EscapeAnalyzer();
+        let = escapeAnalyzer.optimize(let);
+        assertEquals(2, escapeAnalyzer.getReplacedCount());
+
+        Value v = TestUtils.resolveAndEvaluate(let);
+        assertEquals(IntVal.of(55), v);
+
+        Expression escaping = new LetExpr("r", RefType.of(IntType.singleton), new RefExpr(new ValueExpr(IntVal.of(1))), new VarExpr("r"));
+        escaping.typecheck(new TypeEnvironment());
+        assertSame(escaping, escapeAnalyzer.optimize(escaping));
+        assertEquals(2, escapeAnalyzer.getReplacedCount());
+    }
+
+    @Test
+    // let r: Ref Int = ref 41 in (r <- !r + 1; !r), with cells for Ints and Bools holding their contents unboxed.
+    public void testPrimitiveRefCells() {
+        Type refInt = RefType.of(IntType.singleton);
+        RefExpr newRef = new RefExpr(new ValueExpr(IntVal.of(41)));
+        Expression let = new LetExpr("r", refInt, newRef,
+                new SeqExpr(new Expression[] {
+                        new AssignExpr(new VarExpr("r"),
+                                new BinOpExpr(Op.ADD, new DerefExpr(new VarExpr("r")), new ValueExpr(IntVal.of(1)))),
+                        new DerefExpr(new VarExpr("r"))
+                }));
+        let.typecheck(new TypeEnvironment());
+        Scope scope = new Scope();
+        let = let.resolve(scope);
+        assertEquals(42, let.evaluateInt(TestUtils.newFrame(scope)));
+
+        Expression boolRef = new RefExpr(new ValueExpr(BoolVal.trueSingleton));
+        boolRef.typecheck(new TypeEnvironment());
+        assertTrue(boolRef.evaluate(new ValueEnvironment()) instanceof BoolRefVal);
+
+        // Casting the cell to Ref ? keeps it unboxed, and writes through the cast are still checked.
+        RefVal ref = (RefVal) newRef.evaluate(new ValueEnvironment());
+        assertTrue(ref instanceof IntRefVal);
+        assertSame(ref, CastExpr.cast(ref, RefType.of(AnyType.singleton)));
+        try {
+            ref.assignChecked(BoolVal.trueSingleton);
+        } catch (StratagemException e) {
+            assertEquals(IntVal.of(41), ref.dereference());
+            return;
+        }
+        assertTrue("Failed to throw exception on a write of the wrong type", false);
+    }
+
+    @Test
+    // fn(n: Int) { if (n == 0) { "zero" } else { n * 2 + 1 } }, compiled to JVM bytecode.
+    public void testCompiledFunction() {
+        FunctionDeclExpr decl = new FunctionDeclExpr(
+                "n",
+                IntType.singleton,
+                new IfExpr(
+                        new BinOpExpr(Op.EQ, new VarExpr("n"), new ValueExpr(IntVal.of(0))),
+                        new ValueExpr(StringVal.intern("zero")),
+                        new BinOpExpr(Op.ADD,
+                                new BinOpExpr(Op.MULTIPLY, new VarExpr("n"), new ValueExpr(IntVal.of(2))),
+                                new ValueExpr(IntVal.of(1)))));
+        decl.typecheck(new TypeEnvironment());
+        decl.resolve(new Scope());
+
+        CompiledFunction compiled = JitCompiler.compile(decl);
+        assertNotNull(compiled);
+
+        ValueEnvironment frame = new ValueEnvironment(null, decl.getFrameLayout(), new Value[0]);
+        frame.setSlot(0, IntVal.of(20));
+        assertEquals(IntVal.of(41), compiled.invoke(frame));
+        frame.setSlot(0, IntVal.of(0));
+        assertEquals(StringVal.intern("zero"), compiled.invoke(frame));
+    }
+
+    @Test
+    // let rec sum: Int -> Int = fn(n: Int) { if (n == 0) { 0 } else { n + sum(n - 1) } } in sum(100) + 1,
+    // with the recursive calls returning unboxed ints, and fn(n: Int) { n > 3 } compiled with an unboxed entry.
+    public void testUnboxedEntry() {
+        FunctionDeclExpr decl = new FunctionDeclExpr(
+                "n",
+                IntType.singleton,
+                new IfExpr(
+                        new BinOpExpr(Op.EQ, new VarExpr("n"), new ValueExpr(IntVal.of(0))),
+                        new ValueExpr(IntVal.of(0)),
+                        new BinOpExpr(Op.ADD, new VarExpr("n"), new FunctionAppExpr(
+                                new VarExpr("sum"),
+                                new BinOpExpr(Op.SUBTRACT, new VarExpr("n"), new ValueExpr(IntVal.of(1)))))));
+        ClosureType intToInt = ClosureType.of(IntType.singleton, IntType.singleton);
+        Expression letRec = new LetRecExpr("sum", intToInt, decl,
+                new BinOpExpr(Op.ADD,
+                        new FunctionAppExpr(new VarExpr("sum"), new ValueExpr(IntVal.of(100))),
+                        new ValueExpr(IntVal.of(1))));
+        letRec.typecheck(new TypeEnvironment());
+        Scope scope = new Scope();
+        letRec = letRec.resolve(scope);
+        assertTrue(decl.hasUnboxedEntry());
+        assertEquals(5051, letRec.evaluateInt(TestUtils.newFrame(scope)));
+
+        FunctionDeclExpr test = new FunctionDeclExpr(
+                "n",
+                IntType.singleton,
+                new BinOpExpr(Op.GT, new VarExpr("n"), new ValueExpr(IntVal.of(3))));
+        test.typecheck(new TypeEnvironment());
+        test.resolve(new Scope());
+        assertTrue(test.hasUnboxedEntry());
+
+        CompiledFunction compiled = JitCompiler.compile(test);
+        ValueEnvironment frame = new ValueEnvironment(null, test.getFrameLayout(), new Value[0]);
+        frame.setSlot(0, IntVal.of(4));
+        assertTrue(compiled.invokeBoolean(frame));
+        assertSame(BoolVal.trueSingleton, compiled.invoke(frame));
+        frame.setSlot(0, IntVal.of(3));
+        assertFalse(compiled.invokeBoolean(frame));
+
+        // A call in tail position returns its result through the trampoline, so it stays boxed.
+        FunctionDeclExpr forward = new FunctionDeclExpr(
+                "n",
+                IntType.singleton,
+                new FunctionAppExpr(new FunctionDeclExpr("m", IntType.singleton, new VarExpr("m")), new VarExpr("n")));
+        forward.typecheck(new TypeEnvironment());
+        forward.resolve(new Scope());
+        assertFalse(forward.hasUnboxedEntry());
+    }
+
+    @Test
+    // fn(n: Int) { if (n == 0) { "zero" } else { n * 2 + 1 } }(20), run on the VirtualMachine.
+    public void testVirtualMachine() {
+        FunctionDeclExpr decl = new FunctionDeclExpr(
+                "n",
+                IntType.singleton,
+                new IfExpr(
+                        new BinOpExpr(Op.EQ, new VarExpr("n"), new ValueExpr(IntVal.of(0))),
+                        new ValueExpr(StringVal.intern("zero")),
+                        new BinOpExpr(Op.ADD,
+                                new BinOpExpr(Op.MULTIPLY, new VarExpr("n"), new ValueExpr(IntVal.of(2))),
+                                new ValueExpr(IntVal.of(1)))));
+        Expression app = new FunctionAppExpr(decl, new ValueExpr(IntVal.of(20)));
+        app.typecheck(new TypeEnvironment());
+        Scope scope = new Scope();
+        app = app.resolve(scope);
+
+        VmFunction program = VmCompiler.compileProgram(app, scope.getFrameLayout());
+        assertEquals(IntVal.of(41), VirtualMachine.run(program));
+    }
+
+    @Test
+    // let rec f = fn(n) { if (n == 0) { 1 } else { n * f(n - 1) } } in let g: ? = fn(x) { x } in f(5)
+    public void testTypeInference() {
+        FunctionDeclExpr f = new FunctionDeclExpr("n", null,
+                new IfExpr(new BinOpExpr(Op.EQ, new VarExpr("n"), new ValueExpr(IntVal.of(0))),
+                        new ValueExpr(IntVal.of(1)),
+                        new BinOpExpr(Op.MULTIPLY, new VarExpr("n"),
+                                new FunctionAppExpr(new VarExpr("f"),
+                                        new BinOpExpr(Op.SUBTRACT, new VarExpr("n"), new ValueExpr(IntVal.of(1)))))));
+        FunctionDeclExpr g = new FunctionDeclExpr("x", null, new VarExpr("x"));
+        LetRecExpr letRec = new LetRecExpr("f", null, f,
+                new LetExpr("g", AnyType.singleton, g,
+                        new FunctionAppExpr(new VarExpr("f"), new ValueExpr(IntVal.of(5)))));
+
+        TypeInferencer inferencer = new TypeInferencer();
+        inferencer.infer(letRec);
+        assertEquals("Types inferred: 2 of 3", inferencer.getReport());
+        assertEquals(IntType.singleton, f.getParamTypes()[0]);
+        assertEquals(ClosureType.of(IntType.singleton, IntType.singleton), letRec.getVarType());
+
+        // g is used as a ?, so it could be called with anything.
+        assertEquals(AnyType.singleton, g.getParamTypes()[0]);
+
+        assertEquals(IntType.singleton, letRec.typecheck(new TypeEnvironment()));
+        assertEquals(IntType.singleton, f.getReturnType());
+        assertEquals(IntVal.of(120), TestUtils.resolveAndEvaluate(letRec));
+    }
+
+    @Test
+    // let id = fn(x: 'a) { x } in let apply = fn(f: 'a -> 'b, x: 'a) { f(x) } in apply(id, 5) + apply(id, 1)
+    public void testGenericFunction() {
+        TypeVar a = TypeVar.of("a");
+        TypeVar b = TypeVar.of("b");
+        FunctionDeclExpr id = new FunctionDeclExpr("x", a, new VarExpr("x"));
+        FunctionDeclExpr apply = new FunctionDeclExpr(new String[] { "f", "x" },
+                new Type[] { ClosureType.of(a, b), a },
+                new FunctionAppExpr(new VarExpr("f"), new VarExpr("x")));
+        FunctionAppExpr first = new FunctionAppExpr(new VarExpr("apply"),
+                new Expression[] { new VarExpr("id"), new ValueExpr(IntVal.of(5)) });
+        FunctionAppExpr second = new FunctionAppExpr(new VarExpr("apply"),
+                new Expression[] { new VarExpr("id"), new ValueExpr(IntVal.of(1)) });
+        LetExpr let = new LetExpr("id", null, id,
+                new LetExpr("apply", null, apply, new BinOpExpr(Op.ADD, first, second)));
+
+        new TypeInferencer().infer(let);
+        assertEquals(ClosureType.of(a, a), let.getVarType());
+        assertEquals(IntType.singleton, let.typecheck(new TypeEnvironment()));
+        assertEquals(ClosureType.of(new Type[] { ClosureType.of(a, b), a }, b), apply.getType());
+
+        // Each call instantiates the type variables. Closures have the erased types, so id is cast to the type
+        // it is instantiated to, while 5 already has it.
+        Expression[] args = first.getArgs();
+        assertTrue(args[0] instanceof CastExpr);
+        assertEquals(ClosureType.of(IntType.singleton, IntType.singleton), ((CastExpr) args[0]).getTarget());
+        assertFalse(args[1] instanceof CastExpr);
+        assertEquals(ClosureType.of(AnyType.singleton, AnyType.singleton), id.getRuntimeType());
+
+        assertEquals(IntVal.of(6), TestUtils.resolveAndEvaluate(let));
+    }
+
+    @Test(expected=StratagemCastException.class)
+    // let mk = fn(x: 'a) { ref x } in let c = mk(3) in let d: ? = c in fn() { d <- true; !c }()
+    // where the cell made at 'a is tightened to Int when mk(3) instantiates it, as if mk took an Int,
+    // so the write through d fails instead of leaving true in a cell read as an Int.
+    public void testGenericReferenceIsCast() {
+        Expression mk = new FunctionDeclExpr("x", TypeVar.of("a"), new RefExpr(new VarExpr("x")));
+        Expression body = new FunctionAppExpr(
+                new FunctionDeclExpr(new String[0], new Type[0], new SeqExpr(new Expression[] {
+                        new AssignExpr(new VarExpr("d"), new ValueExpr(BoolVal.of(true))),
+                        new DerefExpr(new VarExpr("c"))
+                })),
+                new Expression[0]);
+        Expression e = new LetExpr("mk", null, mk,
+                new LetExpr("c", null, new FunctionAppExpr(new VarExpr("mk"), new ValueExpr(IntVal.of(3))),
+                        new LetExpr("d", AnyType.singleton, new VarExpr("c"), body)));
+        new TypeInferencer().infer(e);
+        e.typecheck(new TypeEnvironment());
+        TestUtils.resolveAndEvaluate(e);
+    }
+
+    @Test(expected=StratagemCastException.class)
+    // let mk = fn(x: 'a) { let r = ref x in fn(y: 'a) { let old = !r in fn() { r <- y; old }() } } in
+    // let f = mk(1) in let d: ? = f in let h: Bool -> ? = d in fn() { h(true); f(2) }()
+    // where the function made at 'a is cast to Int -> Int when mk(1) instantiates it, as if mk took an Int,
+    // so h cannot pass it true for f(2) to return.
+    public void testGenericFunctionResultIsCast() {
+        Expression swap = new LetExpr("old", null, new DerefExpr(new VarExpr("r")),
+                new FunctionAppExpr(
+                        new FunctionDeclExpr(new String[0], new Type[0], new SeqExpr(new Expression[] {
+                                new AssignExpr(new VarExpr("r"), new VarExpr("y")),
+                                new VarExpr("old")
+                        })),
+                        new Expression[0]));
+        Expression mk = new FunctionDeclExpr("x", TypeVar.of("a"),
+                new LetExpr("r", null, new RefExpr(new VarExpr("x")),
+                        new FunctionDeclExpr("y", TypeVar.of("a"), swap)));
+        Expression body = new FunctionAppExpr(
+                new FunctionDeclExpr(new String[0], new Type[0], new SeqExpr(new Expression[] {
+                        new FunctionAppExpr(new VarExpr("h"), new ValueExpr(BoolVal.of(true))),
+                        new FunctionAppExpr(new VarExpr("f"), new ValueExpr(IntVal.of(2)))
+                })),
+                new Expression[0]);
+        Expression e = new LetExpr("mk", null, mk,
+                new LetExpr("f", null, new FunctionAppExpr(new VarExpr("mk"), new ValueExpr(IntVal.of(1))),
+                        new LetExpr("d", AnyType.singleton, new VarExpr("f"),
+                                new LetExpr("h", ClosureType.of(BoolType.singleton, AnyType.singleton),
+                                        new VarExpr("d"), body))));
+        new TypeInferencer().infer(e);
+        e.typecheck(new TypeEnvironment());
+        TestUtils.resolveAndEvaluate(e);
+    }
+
+    @Test(expected=StratagemException.class)
+    // let d: ? = 1 in fn(x: 'a) { let y: 'a = d in y }
+    public void testGenericFunctionRejectsAny() {
+        Expression e = new LetExpr("d", AnyType.singleton, new ValueExpr(IntVal.of(1)),
+                new FunctionDeclExpr("x", TypeVar.of("a"),
+                        new LetExpr("y", TypeVar.of("a"), new VarExpr("d"), new VarExpr("y"))));
+        e.typecheck(new TypeEnvironment());
+    }
+
+    @Test(expected=StratagemException.class)
+    // let g: ? = fn(x: Bool) { 5 } in let h: 'a -> 'a = g in let r: Ref Bool = ref h(true) in !r
+    // would read 5 out of a Ref Bool, since a cast to 'a -> 'a cannot check the result at runtime.
+    // Every engine runs after typechecking, so none of them gets to evaluate it.
+    public void testGenericFunctionRejectsAnyFunction() {
+        Expression e = new LetExpr("g", AnyType.singleton,
+                new FunctionDeclExpr("x", BoolType.singleton, new ValueExpr(IntVal.of(5))),
+                new LetExpr("h", ClosureType.of(new Type[] { TypeVar.of("a") }, TypeVar.of("a")), new VarExpr("g"),
+                        new LetExpr("r", RefType.of(BoolType.singleton),
+                                new RefExpr(new FunctionAppExpr(new VarExpr("h"), new ValueExpr(BoolVal.of(true)))),
+                                new DerefExpr(new VarExpr("r")))));
+        new TypeInferencer().infer(e);
+        e.typecheck(new TypeEnvironment());
+    }
 }
+
@@ -12,7 +12,7 @@ class TestUtils {
     }
 
     static FunctionAppExpr makeAny(int n) {
-        return makeAny(new IntVal(n));
+        return makeAny(IntVal.of(n));
     }
 
     // The identity function:
@@ -27,19 +27,52 @@ class TestUtils {
     static final FunctionDeclExpr succ = new FunctionDeclExpr(
             "n",
             IntType.singleton,
-            new BinOpExpr(Op.ADD, new VarExpr("n"), new ValueExpr(new IntVal(1))));
+            new BinOpExpr(Op.ADD, new VarExpr("n"), new ValueExpr(IntVal.of(1))));
+
+    // Sums 1 to 10 in a loop over two references:
+    //   let i: Ref Int = ref 0 in let s: Ref Int = ref 0 in (while (!i != 10) { i <- !i + 1; s <- !s + !i }; !s)
+    // which has type
+    //   Int
+    // and which evaluates to
+    //   55
+    static Expression makeSumLoop() {
+        Expression loop = new WhileExpr(
+                new BinOpExpr(Op.NE, new DerefExpr(new VarExpr("i")), new ValueExpr(IntVal.of(10))),
+                new SeqExpr(new Expression[] {
+                        new AssignExpr(new VarExpr("i"),
+                                new BinOpExpr(Op.ADD, new DerefExpr(new VarExpr("i")), new ValueExpr(IntVal.of(1)))),
+                        new AssignExpr(new VarExpr("s"),
+                                new BinOpExpr(Op.ADD, new DerefExpr(new VarExpr("s")), new DerefExpr(new VarExpr("i"))))
+                }));
+        Type refInt = RefType.of(IntType.singleton);
+        return new LetExpr("i", refInt, new RefExpr(new ValueExpr(IntVal.of(0))),
+                new LetExpr("s", refInt, new RefExpr(new ValueExpr(IntVal.of(0))),
+                        new SeqExpr(new Expression[] { loop, new DerefExpr(new VarExpr("s")) })));
+    }
+
+    // Resolves a typechecked expression at the top level and evaluates it.
+    static Value resolveAndEvaluate(Expression e) {
+        Scope scope = new Scope();
+        e = e.resolve(scope);
+        return e.evaluate(newFrame(scope));
+    }
+
+    // The frame for the variables of a top-level scope, once an expression has been resolved in it.
+    static ValueEnvironment newFrame(Scope scope) {
+        return new ValueEnvironment(null, scope.getFrameLayout(), new Value[0]);
+    }
 
     // Produces an expression of the type:
     //   arg -> ret
     static Expression makeTrivialFn(Type arg, Type ret) {
-        Type fnType = new ClosureType(arg, ret);
+        Type fnType = ClosureType.of(arg, ret);
         return makeTrivialExpression(fnType);
     }
 
     // Produces an expression of the type:
     //   arg -> ret1 -> ret2
     static Expression makeTrivialFn(Type arg, Type ret1, Type ret2) {
-        Type fnType = new ClosureType(arg, new ClosureType(ret1, ret2));
+        Type fnType = ClosureType.of(arg, ClosureType.of(ret1, ret2));
         return makeTrivialExpression(fnType);
     }
 
@@ -51,14 +84,18 @@ class TestUtils {
             return ValueExpr.trueSingleton;
         } else if (type instanceof ClosureType) {
             ClosureType closureType = (ClosureType) type;
+            String[] paramNames = new String[closureType.getArity()];
+            for (int i = 0; i < paramNames.length; i++) {
+                paramNames[i] = "x" + i;
+            }
             return new FunctionDeclExpr(
-                    "x",
-                    closureType.getArgType(),
+                    paramNames,
+                    closureType.getArgTypes(),
                     makeTrivialExpression(closureType.getReturnType()));
         } else if (type instanceof IntType) {
-            return new ValueExpr(new IntVal(0));
+            return new ValueExpr(IntVal.of(0));
         } else if (type instanceof StringType) {
-            return new ValueExpr(new StringVal(""));
+            return new ValueExpr(StringVal.intern(""));
         } else if (type instanceof UnitType) {
             return ValueExpr.unitSingleton;
         } else {
@@ -8,9 +8,36 @@ public class ValueTest {
 
     @Test
     public void testBoolVal() {
-        BoolVal tr = new BoolVal(true);
-        BoolVal tr2 = new BoolVal(true);
+        BoolVal tr = BoolVal.of(true);
+        BoolVal tr2 = BoolVal.of(true);
         assertEquals(tr, tr2);
     }
 
+    @Test
+    public void testRuntimeTypeTags() {
+        RefVal r1 = new RefVal(IntVal.of(1));
+        RefVal r2 = new RefVal(IntVal.of(2));
+        assertSame(IntType.singleton, IntVal.of(1).getType());
+        assertSame(RefType.of(IntType.singleton), r1.getType());
+        assertSame(r1.getType(), r2.getType());
+    }
+
+    @Test
+    public void testCanonicalValues() {
+        assertSame(BoolVal.trueSingleton, BoolVal.of(true));
+        assertSame(BoolVal.falseSingleton, BoolVal.of(false));
+        assertSame(IntVal.of(7), IntVal.of(7));
+        assertSame(IntVal.of(IntVal.cacheLow), IntVal.of(IntVal.cacheLow));
+        assertEquals(IntVal.of(1 << 20), IntVal.of(1 << 20));
+        assertSame(StringVal.intern("Alice"), StringVal.intern("Ali" + "ce".toString()));
+    }
+
+    @Test
+    public void testIntCacheRange() {
+        assertEquals(1023, IntVal.clampCacheHigh(-128, 1023));
+        assertEquals(Integer.MIN_VALUE + IntVal.MAX_CACHE_SIZE - 1, IntVal.clampCacheHigh(Integer.MIN_VALUE, 10));
+        assertEquals(IntVal.MAX_CACHE_SIZE - 1, IntVal.clampCacheHigh(0, Integer.MAX_VALUE));
+        assertEquals(Integer.MAX_VALUE, IntVal.clampCacheHigh(Integer.MAX_VALUE - 1, Integer.MAX_VALUE));
+    }
+
 }